@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.gifencoder;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import javax.imageio.ImageIO;
+
+/**
+ * Builds the images the benchmarks run on. Each kind of content stresses the encoder differently,
+ * so every benchmark is parameterized over all of them.
+ */
+final class BenchmarkImages {
+  private BenchmarkImages() {
+  }
+
+  /**
+   * Returns an image of the given content and size, as packed 0xRRGGBB pixels in row-major order.
+   * The same arguments always produce the same pixels.
+   *
+   * @param content one of "photo", "screenshot", "gradient" or "noise"
+   */
+  static int[] create(String content, int width, int height) throws IOException {
+    switch (content) {
+      case "photo":
+        return photo(width, height);
+      case "screenshot":
+        return screenshot(width, height);
+      case "gradient":
+        return gradient(width, height);
+      case "noise":
+        return noise(width, height);
+      default:
+        throw new IllegalArgumentException("Unknown content: " + content);
+    }
+  }
+
+  /**
+   * The Lenna test image, scaled to the requested size. Many distinct colors, mostly smooth.
+   */
+  private static int[] photo(int width, int height) throws IOException {
+    BufferedImage original;
+    try (InputStream in = BenchmarkImages.class.getResourceAsStream("/lenna-original.png")) {
+      original = ImageIO.read(in);
+    }
+    BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Graphics2D graphics = scaled.createGraphics();
+    graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+        RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+    graphics.drawImage(original, 0, 0, width, height, null);
+    graphics.dispose();
+    return scaled.getRGB(0, 0, width, height, null, 0, width);
+  }
+
+  /**
+   * A synthetic user interface: a few flat colors, with panels, buttons and lines of "text". Few
+   * distinct colors and long runs, like a screen recording.
+   */
+  private static int[] screenshot(int width, int height) {
+    int[] rgb = new int[width * height];
+    fill(rgb, width, 0, 0, width, height, 0xF2F2F2);
+    fill(rgb, width, 0, 0, width, Math.max(1, height / 16), 0x3B5998);
+    Random random = new Random(0);
+    int panelWidth = width / 2;
+    for (int top = height / 8; top + height / 8 <= height; top += height / 6) {
+      fill(rgb, width, width / 16, top, panelWidth, height / 8, 0xFFFFFF);
+      // Lines of text, as short dark runs of varying length.
+      for (int line = top + 2; line < top + height / 8 - 2; line += 4) {
+        int x = width / 16 + 4;
+        while (x < width / 16 + panelWidth - 8) {
+          int wordLength = 2 + random.nextInt(8);
+          fill(rgb, width, x, line, Math.min(wordLength, width - x), 2, 0x1D2129);
+          x += wordLength + 2;
+        }
+      }
+      fill(rgb, width, width * 5 / 8, top, width / 4, height / 16, 0x4267B2);
+    }
+    return rgb;
+  }
+
+  private static void fill(int[] rgb, int width, int left, int top, int fillWidth,
+      int fillHeight, int color) {
+    int height = rgb.length / width;
+    for (int y = top; y < Math.min(top + fillHeight, height); ++y) {
+      for (int x = left; x < Math.min(left + fillWidth, width); ++x) {
+        rgb[y * width + x] = color;
+      }
+    }
+  }
+
+  /**
+   * Red varies across, green down, and blue diagonally. Smooth, with many distinct colors, which
+   * makes banding from quantization easy to see.
+   */
+  private static int[] gradient(int width, int height) {
+    int[] rgb = new int[width * height];
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x) {
+        int red = x * 255 / Math.max(1, width - 1);
+        int green = y * 255 / Math.max(1, height - 1);
+        int blue = (x + y) * 255 / Math.max(1, width + height - 2);
+        rgb[y * width + x] = red << 16 | green << 8 | blue;
+      }
+    }
+    return rgb;
+  }
+
+  /**
+   * Uniformly random colors. The worst case for every stage: nearly every pixel is a distinct
+   * color, and nothing compresses.
+   */
+  private static int[] noise(int width, int height) {
+    int[] rgb = new int[width * height];
+    Random random = new Random(0);
+    for (int i = 0; i < rgb.length; ++i) {
+      rgb[i] = random.nextInt() & 0xFFFFFF;
+    }
+    return rgb;
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.gifencoder;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Looks up the color table index of every pixel in an image which has already been dithered, as the
+ * encoder does for images from custom ditherers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ColorTableBenchmark {
+  @Param({"photo", "screenshot", "gradient", "noise"})
+  public String content;
+
+  @Param({"256", "1024"})
+  public int size;
+
+  private Image ditheredImage;
+  private Set<Color> colors;
+
+  @Setup public void setUp() throws IOException {
+    Image image = Image.fromRgb(BenchmarkImages.create(content, size, size), size);
+    colors = WuQuantizer.INSTANCE.quantize(image.getColors(), 256);
+    ditheredImage = FloydSteinbergDitherer.INSTANCE.dither(image, colors);
+  }
+
+  @Benchmark public int[] getIndices() {
+    // A fresh table each time, as the encoder creates one per image, so its cache starts cold.
+    return ColorTable.fromColors(colors).getIndices(ditheredImage);
+  }
+}
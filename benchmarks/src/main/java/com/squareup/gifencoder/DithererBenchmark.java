@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.gifencoder;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Maps an image onto a palette from the default quantizer, both through the public
+ * {@link Ditherer} interface and through the index-producing path which the encoder actually uses.
+ * The palette search benchmarks measure single nearest-color queries, against the k-d tree and
+ * against a linear scan, and ignore the ditherer parameter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DithererBenchmark {
+  @Param({"photo", "screenshot", "gradient", "noise"})
+  public String content;
+
+  @Param({"256", "1024"})
+  public int size;
+
+  @Param({"floyd-steinberg", "nearest-color"})
+  public String ditherer;
+
+  private static final int QUERY_COUNT = 4096;
+
+  private Image image;
+  private Set<Color> colors;
+  private Palette palette;
+  private Color[] queries;
+
+  @Setup public void setUp() throws IOException {
+    image = Image.fromRgb(BenchmarkImages.create(content, size, size), size);
+    colors = WuQuantizer.INSTANCE.quantize(image.getColors(), 256);
+    palette = new Palette(colors);
+    Random random = new Random(0);
+    queries = new Color[QUERY_COUNT];
+    for (int i = 0; i < QUERY_COUNT; ++i) {
+      queries[i] = image.getColor(random.nextInt(size), random.nextInt(size));
+    }
+  }
+
+  @Benchmark public Image dither() {
+    Ditherer instance = ditherer.equals("floyd-steinberg")
+        ? FloydSteinbergDitherer.INSTANCE
+        : NearestColorDitherer.INSTANCE;
+    return instance.dither(image, colors);
+  }
+
+  @Benchmark public int[] ditherToIndices() {
+    // The encoder builds a palette for each image, so that is part of the cost.
+    Palette palette = new Palette(colors);
+    return ditherer.equals("floyd-steinberg")
+        ? FloydSteinbergDitherer.INSTANCE.ditherToIndices(image, palette, null)
+        : NearestColorDitherer.INSTANCE.ditherToIndices(image, palette, null);
+  }
+
+  @Benchmark @OperationsPerInvocation(QUERY_COUNT) public int searchPalette() {
+    int sum = 0;
+    for (Color query : queries) {
+      sum += palette.getNearestIndex(
+          query.getComponent(0), query.getComponent(1), query.getComponent(2));
+    }
+    return sum;
+  }
+
+  @Benchmark @OperationsPerInvocation(QUERY_COUNT) public int scanPalette() {
+    int sum = 0;
+    for (Color query : queries) {
+      sum += query.getNearestColor(colors).hashCode();
+    }
+    return sum;
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.gifencoder;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compresses the color indices of a dithered image.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LzwEncoderBenchmark {
+  @Param({"photo", "screenshot", "gradient", "noise"})
+  public String content;
+
+  @Param({"256", "1024"})
+  public int size;
+
+  private int[] indices;
+  private int paddedColorTableSize;
+
+  @Setup public void setUp() throws IOException {
+    Image image = Image.fromRgb(BenchmarkImages.create(content, size, size), size);
+    Set<Color> colors = WuQuantizer.INSTANCE.quantize(image.getColors(), 256);
+    ColorTable colorTable = ColorTable.fromColors(colors);
+    indices = colorTable.getIndices(FloydSteinbergDitherer.INSTANCE.dither(image, colors));
+    paddedColorTableSize = colorTable.paddedSize();
+  }
+
+  @Benchmark public byte[] encode() {
+    return new LzwEncoder(paddedColorTableSize).encode(indices);
+  }
+
+  @Benchmark public void encodeStreaming() throws IOException {
+    new LzwEncoder(paddedColorTableSize).encode(indices, new NullOutputStream());
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.gifencoder;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reduces an image's histogram to a 256 color palette.
+ *
+ * <p>{@link KMeansQuantizer} is very slow on images with many distinct colors, such as large noise;
+ * narrow the parameters with {@code -p} to skip those combinations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QuantizerBenchmark {
+  @Param({"photo", "screenshot", "gradient", "noise"})
+  public String content;
+
+  @Param({"256", "1024"})
+  public int size;
+
+  @Param({"wu", "median-cut", "octree", "k-means", "uniform"})
+  public String quantizer;
+
+  private ColorQuantizer colorQuantizer;
+  private Multiset<Color> colors;
+
+  @Setup public void setUp() throws IOException {
+    switch (quantizer) {
+      case "wu":
+        colorQuantizer = WuQuantizer.INSTANCE;
+        break;
+      case "median-cut":
+        colorQuantizer = MedianCutQuantizer.INSTANCE;
+        break;
+      case "octree":
+        colorQuantizer = OctreeQuantizer.INSTANCE;
+        break;
+      case "k-means":
+        colorQuantizer = KMeansQuantizer.INSTANCE;
+        break;
+      case "uniform":
+        colorQuantizer = UniformQuantizer.INSTANCE;
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown quantizer: " + quantizer);
+    }
+    colors = Image.fromRgb(BenchmarkImages.create(content, size, size), size).getColors();
+  }
+
+  @Benchmark public Set<Color> quantize() {
+    return colorQuantizer.quantize(colors, 256);
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.gifencoder.simd;
+
+import com.squareup.gifencoder.NearestColorSearch;
+import java.util.Arrays;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Measures the distance to every color, as many at a time as the platform's vector registers
+ * allow. Each lane remembers the nearest color it has seen, and the lanes are combined at the end.
+ *
+ * <p>Distances are computed in double precision, in the same order as the encoder's scalar
+ * search, so the two always agree.
+ */
+final class VectorNearestColorSearch implements NearestColorSearch {
+  private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+  private final double[] red;
+  private final double[] green;
+  private final double[] blue;
+
+  VectorNearestColorSearch(double[] red, double[] green, double[] blue) {
+    // Pad to a whole number of vectors with infinitely distant colors, so there is no tail loop.
+    int paddedLength = (red.length + SPECIES.length() - 1) / SPECIES.length() * SPECIES.length();
+    this.red = pad(red, paddedLength);
+    this.green = pad(green, paddedLength);
+    this.blue = pad(blue, paddedLength);
+  }
+
+  private static double[] pad(double[] components, int paddedLength) {
+    double[] padded = Arrays.copyOf(components, paddedLength);
+    Arrays.fill(padded, components.length, paddedLength, Double.POSITIVE_INFINITY);
+    return padded;
+  }
+
+  @Override public int getNearestIndex(double red, double green, double blue) {
+    DoubleVector targetRed = DoubleVector.broadcast(SPECIES, red);
+    DoubleVector targetGreen = DoubleVector.broadcast(SPECIES, green);
+    DoubleVector targetBlue = DoubleVector.broadcast(SPECIES, blue);
+
+    DoubleVector nearestDistances = DoubleVector.broadcast(SPECIES, Double.POSITIVE_INFINITY);
+    DoubleVector nearestIndices = DoubleVector.zero(SPECIES);
+    // Indices are exact as doubles, and keeping them in a double vector avoids lane conversions.
+    DoubleVector indices = (DoubleVector) SPECIES.iotaShuffle(0, 1, false).toVector();
+    DoubleVector step = DoubleVector.broadcast(SPECIES, SPECIES.length());
+
+    for (int i = 0; i < this.red.length; i += SPECIES.length()) {
+      DoubleVector dr = targetRed.sub(DoubleVector.fromArray(SPECIES, this.red, i));
+      DoubleVector dg = targetGreen.sub(DoubleVector.fromArray(SPECIES, this.green, i));
+      DoubleVector db = targetBlue.sub(DoubleVector.fromArray(SPECIES, this.blue, i));
+      DoubleVector distances = dr.mul(dr).add(dg.mul(dg)).add(db.mul(db));
+
+      // Strictly nearer, so each lane keeps the earliest of any tied colors.
+      VectorMask<Double> nearer = distances.lt(nearestDistances);
+      nearestDistances = nearestDistances.blend(distances, nearer);
+      nearestIndices = nearestIndices.blend(indices, nearer);
+      indices = indices.add(step);
+    }
+
+    double nearestDistance = nearestDistances.reduceLanes(VectorOperators.MIN);
+    VectorMask<Double> nearest = nearestDistances.eq(nearestDistance);
+    if (!nearest.anyTrue()) {
+      // Every distance was NaN, so no color is nearer than any other.
+      return 0;
+    }
+    return (int) nearestIndices
+        .blend(Double.POSITIVE_INFINITY, nearest.not())
+        .reduceLanes(VectorOperators.MIN);
+  }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.gifencoder.simd;
+
+import com.squareup.gifencoder.NearestColorSearch;
+import com.squareup.gifencoder.NearestColorSearchProvider;
+
+/**
+ * Provides nearest-color searches built on the incubating JDK Vector API. The encoder discovers
+ * this provider automatically, but the Vector API is only available to applications run with
+ * {@code --add-modules jdk.incubator.vector}; without it, this provider declines, and the encoder
+ * uses its own search.
+ */
+public final class VectorNearestColorSearchProvider implements NearestColorSearchProvider {
+  private static final boolean VECTOR_API_AVAILABLE =
+      ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+  @Override public NearestColorSearch create(double[] red, double[] green, double[] blue) {
+    // VectorNearestColorSearch links against the Vector API, so it may only be loaded here.
+    return VECTOR_API_AVAILABLE ? new VectorNearestColorSearch(red, green, blue) : null;
+  }
+}
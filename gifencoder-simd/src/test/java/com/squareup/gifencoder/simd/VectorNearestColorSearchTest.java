@@ -0,0 +1,67 @@
+package com.squareup.gifencoder.simd;
+
+import com.squareup.gifencoder.NearestColorSearch;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class VectorNearestColorSearchTest {
+  @Test public void testGetNearestIndex_matchesLinearScan() {
+    Random random = new Random(18);
+    for (int size : new int[] {1, 3, 8, 17, 256}) {
+      double[][] components = new double[3][size];
+      for (double[] component : components) {
+        for (int i = 0; i < size; ++i) {
+          component[i] = random.nextDouble();
+        }
+      }
+      NearestColorSearch search =
+          new VectorNearestColorSearch(components[0], components[1], components[2]);
+
+      for (int i = 0; i < 1000; ++i) {
+        double red = random.nextDouble() * 1.4 - 0.2;
+        double green = random.nextDouble() * 1.4 - 0.2;
+        double blue = random.nextDouble() * 1.4 - 0.2;
+        assertThat(search.getNearestIndex(red, green, blue))
+            .isEqualTo(getNearestIndexByScan(components, red, green, blue));
+      }
+    }
+  }
+
+  @Test public void testGetNearestIndex_tiesGoToEarliest() {
+    double[] zeros = new double[20];
+    NearestColorSearch search = new VectorNearestColorSearch(zeros, zeros, zeros);
+    assertThat(search.getNearestIndex(0.5, 0.5, 0.5)).isEqualTo(0);
+
+    double[] values = new double[20];
+    values[13] = 1;
+    values[17] = 1;
+    search = new VectorNearestColorSearch(values, values, values);
+    assertThat(search.getNearestIndex(0.9, 0.9, 0.9)).isEqualTo(13);
+  }
+
+  @Test public void testGetNearestIndex_skipsInfiniteColors() {
+    double inf = Double.POSITIVE_INFINITY;
+    NearestColorSearch search = new VectorNearestColorSearch(
+        new double[] {inf, 1, inf}, new double[] {inf, 1, inf}, new double[] {inf, 1, inf});
+    assertThat(search.getNearestIndex(0, 0, 0)).isEqualTo(1);
+  }
+
+  private static int getNearestIndexByScan(double[][] components, double red, double green,
+      double blue) {
+    int nearest = -1;
+    double nearestDistance = Double.POSITIVE_INFINITY;
+    for (int i = 0; i < components[0].length; ++i) {
+      double dr = red - components[0][i];
+      double dg = green - components[1][i];
+      double db = blue - components[2][i];
+      double distance = dr * dr + dg * dg + db * db;
+      if (distance < nearestDistance) {
+        nearest = i;
+        nearestDistance = distance;
+      }
+    }
+    return nearest;
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.gifencoder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Packs variable-length codes into bytes, least significant bit first, as the GIF spec requires.
+ * Bits are collected in a register and moved into a growable byte buffer a whole byte at a time.
+ *
+ * <p>The buffer may either be collected in full with {@link #toByteArray}, or drained
+ * incrementally into GIF data sub-blocks, in which case it never grows much beyond one sub-block.
+ */
+final class BitWriter {
+  private static final int MAX_SUB_BLOCK_SIZE = 255;
+
+  private byte[] buffer = new byte[MAX_SUB_BLOCK_SIZE + 1];
+  private int size;
+  private int register;
+  private int registerBitCount;
+
+  /**
+   * Append the lowest {@code bitCount} bits of {@code value}. At most 24 bits may be written at a
+   * time.
+   */
+  void write(int value, int bitCount) {
+    register |= value << registerBitCount;
+    registerBitCount += bitCount;
+    while (registerBitCount >= 8) {
+      appendByte(register);
+      register >>>= 8;
+      registerBitCount -= 8;
+    }
+  }
+
+  /**
+   * Append every bit written to {@code other}, including any bits it has not yet flushed.
+   */
+  void append(BitWriter other) {
+    for (int i = 0; i < other.size; ++i) {
+      write(other.buffer[i] & 0xFF, 8);
+    }
+    write(other.register, other.registerBitCount);
+  }
+
+  /**
+   * Pad any partially written byte with zeros, so that all bits written so far are in the buffer.
+   */
+  void flush() {
+    if (registerBitCount > 0) {
+      appendByte(register);
+      register = 0;
+      registerBitCount = 0;
+    }
+  }
+
+  /**
+   * The number of complete bytes written so far.
+   */
+  int size() {
+    return size;
+  }
+
+  byte[] toByteArray() {
+    return Arrays.copyOf(buffer, size);
+  }
+
+  /**
+   * Write all buffered bytes as a series of data sub-blocks, each prefixed by its length, and
+   * remove them from the buffer. This does not write the block terminator.
+   */
+  void writeSubBlocks(OutputStream outputStream) throws IOException {
+    writeSubBlocks(outputStream, size);
+  }
+
+  /**
+   * Like {@link #writeSubBlocks}, but only writes full 255-byte sub-blocks. Any trailing bytes are
+   * left in the buffer, to be completed by later writes.
+   */
+  void writeCompleteSubBlocks(OutputStream outputStream) throws IOException {
+    writeSubBlocks(outputStream, size - size % MAX_SUB_BLOCK_SIZE);
+  }
+
+  private void writeSubBlocks(OutputStream outputStream, int length) throws IOException {
+    int index = 0;
+    while (index < length) {
+      int subBlockLength = Math.min(length - index, MAX_SUB_BLOCK_SIZE);
+      outputStream.write(subBlockLength);
+      outputStream.write(buffer, index, subBlockLength);
+      index += subBlockLength;
+    }
+    System.arraycopy(buffer, length, buffer, 0, size - length);
+    size -= length;
+  }
+
+  private void appendByte(int b) {
+    if (size == buffer.length) {
+      buffer = Arrays.copyOf(buffer, size * 2);
+    }
+    buffer[size++] = (byte) b;
+  }
+}
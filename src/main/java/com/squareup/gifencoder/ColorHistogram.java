@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.gifencoder;
+
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A multiset of colors which can be represented exactly as 24-bit RGB values, such as the colors
+ * of an image created from RGB data. Counts are kept in an open-addressed hash table keyed on the
+ * packed RGB value, so counting a pixel involves no hashing of doubles and no allocation.
+ * {@link Color} instances are only created when the histogram is iterated.
+ */
+final class ColorHistogram extends AbstractCollection<Color> implements Multiset<Color> {
+  private static final int EMPTY_KEY = -1;
+  private static final int INITIAL_CAPACITY = 1 << 10;
+
+  private int[] keys;
+  private int[] counts;
+  private int distinctCount;
+  private int size;
+
+  ColorHistogram() {
+    keys = new int[INITIAL_CAPACITY];
+    counts = new int[INITIAL_CAPACITY];
+    Arrays.fill(keys, EMPTY_KEY);
+  }
+
+  /**
+   * Add n counts of the given color, packed as 0xRRGGBB. Returns true if the color was not yet
+   * present.
+   */
+  boolean addRgb(int rgb, int n) {
+    int slot = findSlot(rgb);
+    if (keys[slot] == EMPTY_KEY) {
+      keys[slot] = rgb;
+      counts[slot] = n;
+      if (++distinctCount * 2 > keys.length) {
+        grow();
+      }
+      size += n;
+      return true;
+    }
+    counts[slot] += n;
+    size += n;
+    return false;
+  }
+
+  int countRgb(int rgb) {
+    int slot = findSlot(rgb);
+    return keys[slot] == EMPTY_KEY ? 0 : counts[slot];
+  }
+
+  /**
+   * Returns each distinct color with its count, packed as {@code (long) count << 32 | rgb}, in no
+   * particular order. This lets quantizers walk the histogram without creating any {@link Color}s.
+   */
+  long[] getRgbCounts() {
+    long[] rgbCounts = new long[distinctCount];
+    int i = 0;
+    for (int slot = 0; slot < keys.length; ++slot) {
+      if (keys[slot] != EMPTY_KEY) {
+        rgbCounts[i++] = (long) counts[slot] << 32 | keys[slot];
+      }
+    }
+    return rgbCounts;
+  }
+
+  @Override public void add(Color element, int n) {
+    int rgb = getRgbKey(element);
+    if (rgb == EMPTY_KEY) {
+      throw new IllegalArgumentException("Not a 24-bit RGB color: " + element);
+    }
+    addRgb(rgb, n);
+  }
+
+  @Override public boolean add(Color element) {
+    add(element, 1);
+    return true;
+  }
+
+  @Override public int remove(Object element, int n) {
+    int rgb = getRgbKey(element);
+    if (rgb == EMPTY_KEY) {
+      return 0;
+    }
+    int slot = findSlot(rgb);
+    if (keys[slot] == EMPTY_KEY) {
+      return 0;
+    }
+
+    if (n < counts[slot]) {
+      counts[slot] -= n;
+      size -= n;
+      return n;
+    }
+
+    int removed = counts[slot];
+    removeSlot(slot);
+    size -= removed;
+    return removed;
+  }
+
+  @Override public boolean remove(Object element) {
+    return remove(element, 1) > 0;
+  }
+
+  @Override public int count(Object element) {
+    int rgb = getRgbKey(element);
+    return rgb == EMPTY_KEY ? 0 : countRgb(rgb);
+  }
+
+  @Override public int size() {
+    return size;
+  }
+
+  @Override public Iterator<Color> iterator() {
+    return new HistogramIterator();
+  }
+
+  @Override public Set<Color> getDistinctElements() {
+    return new AbstractSet<Color>() {
+      @Override public Iterator<Color> iterator() {
+        return new DistinctIterator();
+      }
+
+      @Override public int size() {
+        return distinctCount;
+      }
+
+      @Override public boolean contains(Object o) {
+        return count(o) > 0;
+      }
+    };
+  }
+
+  private int findSlot(int rgb) {
+    int mask = keys.length - 1;
+    int slot = hash(rgb) & mask;
+    while (keys[slot] != EMPTY_KEY && keys[slot] != rgb) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private static int hash(int rgb) {
+    int h = rgb * 0x9E3779B1;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Empty the given slot, shifting back any later entries in its probe sequence so that lookups
+   * never stop early at the gap.
+   */
+  private void removeSlot(int slot) {
+    int mask = keys.length - 1;
+    int gap = slot;
+    int next = (gap + 1) & mask;
+    while (keys[next] != EMPTY_KEY) {
+      int home = hash(keys[next]) & mask;
+      // Move the entry into the gap if its home slot is not cyclically within (gap, next].
+      if (((next - home) & mask) >= ((next - gap) & mask)) {
+        keys[gap] = keys[next];
+        counts[gap] = counts[next];
+        gap = next;
+      }
+      next = (next + 1) & mask;
+    }
+    keys[gap] = EMPTY_KEY;
+    counts[gap] = 0;
+    --distinctCount;
+  }
+
+  private void grow() {
+    int[] oldKeys = keys;
+    int[] oldCounts = counts;
+    keys = new int[oldKeys.length * 2];
+    counts = new int[oldKeys.length * 2];
+    Arrays.fill(keys, EMPTY_KEY);
+    for (int i = 0; i < oldKeys.length; ++i) {
+      if (oldKeys[i] != EMPTY_KEY) {
+        int slot = findSlot(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        counts[slot] = oldCounts[i];
+      }
+    }
+  }
+
+  /**
+   * Returns the packed RGB value of the given element, or {@link #EMPTY_KEY} if it is not a color
+   * with an exact 24-bit RGB representation.
+   */
+  private static int getRgbKey(Object element) {
+    if (!(element instanceof Color)) {
+      return EMPTY_KEY;
+    }
+    Color color = (Color) element;
+    int rgb = color.getRgbInt();
+    // getRgbInt truncates, so only colors which survive the round trip can be in this histogram.
+    return Color.fromRgbInt(rgb).equals(color) ? rgb : EMPTY_KEY;
+  }
+
+  private class DistinctIterator implements Iterator<Color> {
+    int nextSlot = -1;
+    int currentSlot = -1;
+
+    DistinctIterator() {
+      advance();
+    }
+
+    private void advance() {
+      do {
+        ++nextSlot;
+      } while (nextSlot < keys.length && keys[nextSlot] == EMPTY_KEY);
+    }
+
+    @Override public boolean hasNext() {
+      return nextSlot < keys.length;
+    }
+
+    @Override public Color next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException("iterator has been exhausted");
+      }
+      currentSlot = nextSlot;
+      advance();
+      return Color.fromRgbInt(keys[currentSlot]);
+    }
+
+    @Override public void remove() {
+      // Removal shifts entries around, which would disturb the iteration order.
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private final class HistogramIterator extends DistinctIterator {
+    Color currentElement;
+    int currentCount;
+
+    @Override public boolean hasNext() {
+      return currentCount > 0 || super.hasNext();
+    }
+
+    @Override public Color next() {
+      if (currentCount == 0) {
+        currentElement = super.next();
+        currentCount = counts[currentSlot];
+      }
+      --currentCount;
+      return currentElement;
+    }
+  }
+}
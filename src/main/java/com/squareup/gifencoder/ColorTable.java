@@ -17,59 +17,212 @@ package com.squareup.gifencoder;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 
+/**
+ * A table of at most 256 distinct colors, packed as 0xRRGGBB.
+ *
+ * <p>Looking up the index of a pixel's color is the hot path of every frame, so lookups go
+ * through a direct-mapped cache keyed on the top five bits of each component. Each cache entry
+ * packs an RGB value with its index, so a hit is a single array read. Misses fall back to an
+ * open-addressed hash table and then refill the cache entry.
+ */
 final class ColorTable {
-  private final Map<Integer, Color> indexToColor;
-  private final Map<Color, Integer> colorToIndex;
+  private static final int MAX_SIZE = 256;
+  private static final int EMPTY_KEY = -1;
+  private static final int CACHE_SIZE = 1 << 15;
+
+  private final int[] palette;
+  private final int[] tableKeys;
+  private final int[] tableIndices;
+
+  /**
+   * Entries of the form {@code rgb << 8 | index}. Every entry is a valid mapping from some palette
+   * color to its index, so there is no need for an "empty" marker.
+   */
+  private int[] cache;
+
+  private ColorTable(int[] colors, int count) {
+    // Keep the hash table at most half full, so probe sequences stay short.
+    int tableSize = GifMath.roundUpToPowerOfTwo(Math.max(count, 1) * 2);
+    this.tableKeys = new int[tableSize];
+    this.tableIndices = new int[tableSize];
+    Arrays.fill(tableKeys, EMPTY_KEY);
 
-  private ColorTable(Map<Integer, Color> indexToColor, Map<Color, Integer> colorToIndex) {
-    this.indexToColor = indexToColor;
-    this.colorToIndex = colorToIndex;
+    int size = 0;
+    int[] palette = new int[count];
+    for (int i = 0; i < count; ++i) {
+      int rgb = colors[i];
+      int slot = findSlot(rgb);
+      if (tableKeys[slot] == EMPTY_KEY) {
+        if (size == MAX_SIZE) {
+          throw new IllegalArgumentException("Too many colors for a color table: " + count);
+        }
+        tableKeys[slot] = rgb;
+        tableIndices[slot] = size;
+        palette[size++] = rgb;
+      }
+    }
+    this.palette = Arrays.copyOf(palette, size);
   }
 
   static ColorTable fromColors(Set<Color> colors) {
-    Map<Integer, Color> indexToColor = new HashMap<>();
-    Map<Color, Integer> colorToIndex = new HashMap<>();
-
-    int index = 0;
+    int[] rgb = new int[colors.size()];
+    int i = 0;
     for (Color color : colors) {
-      if (!colorToIndex.containsKey(color)) {
-        indexToColor.put(index, color);
-        colorToIndex.put(color, index);
-        ++index;
-      }
+      rgb[i++] = color.getRgbInt();
     }
+    return new ColorTable(rgb, rgb.length);
+  }
 
-    return new ColorTable(indexToColor, colorToIndex);
+  /**
+   * Create a color table from colors packed as 0xRRGGBB, preserving their order.
+   */
+  static ColorTable fromRgb(int[] palette) {
+    return new ColorTable(palette, palette.length);
+  }
+
+  /**
+   * Returns this table's colors, packed as 0xRRGGBB, in index order.
+   */
+  int[] getPalette() {
+    return palette.clone();
   }
 
   int paddedSize() {
+    return getPaddedSize(size());
+  }
+
+  /**
+   * Returns the size of a table with room for the given number of colors, as written to a file.
+   */
+  static int getPaddedSize(int colorCount) {
     // The padded size needs to be at least 2, because it's impossible to encode a size of 1 in the
     // image descriptor block, which uses a 2^(n+1) representation.
-    return Math.max(GifMath.roundUpToPowerOfTwo(unpaddedSize()), 2);
+    return Math.max(GifMath.roundUpToPowerOfTwo(colorCount), 2);
   }
 
-  private int unpaddedSize() {
-    return colorToIndex.size();
+  /**
+   * The number of distinct colors in this table, before padding.
+   */
+  int size() {
+    return palette.length;
   }
 
   void write(OutputStream outputStream) throws IOException {
-    for (int i = 0; i < unpaddedSize(); ++i) {
-      Streams.writeRgb(outputStream, indexToColor.get(i).getRgbInt());
+    write(outputStream, paddedSize());
+  }
+
+  /**
+   * Write this table padded out to the given size, which may be larger than {@link #paddedSize}
+   * to leave room for extra entries such as a transparent index.
+   */
+  void write(OutputStream outputStream, int paddedSize) throws IOException {
+    for (int i = 0; i < size(); ++i) {
+      Streams.writeRgb(outputStream, palette[i]);
     }
-    for (int i = unpaddedSize(); i < paddedSize(); ++i) {
+    for (int i = size(); i < paddedSize; ++i) {
       Streams.writeRgb(outputStream, 0);
     }
   }
 
   int[] getIndices(Image image) {
-    int[] result = new int[image.getNumPixels()];
-    for (int i = 0; i < result.length; ++i) {
-      result[i] = colorToIndex.get(image.getColor(i));
+    return getIndices(image, null);
+  }
+
+  /**
+   * Like {@link #getIndices(Image)}, but skips pixels whose flag is set, leaving their index as 0.
+   * Their colors need not be in this table.
+   *
+   * @param skippedPixels a flag for each pixel in row-major order, or null to skip none
+   */
+  int[] getIndices(Image image, boolean[] skippedPixels) {
+    int[] result = new int[image.getWidth() * image.getHeight()];
+    getIndices(image, skippedPixels, 0, image.getHeight(), result);
+    return result;
+  }
+
+  /**
+   * Like {@link #getIndices(Image, boolean[])}, but looks up bands of rows in parallel on the given
+   * executor, as split by {@link Parallel#splitRows}. Each band after the first uses its own copy
+   * of this table, since lookups fill the cache.
+   */
+  int[] getIndices(final Image image, final boolean[] skippedPixels, Executor executor,
+      int bandSize) throws IOException {
+    final int[] bands = Parallel.splitRows(image.getWidth(), image.getHeight(), executor, bandSize);
+    if (bands.length <= 2) {
+      return getIndices(image, skippedPixels);
     }
+
+    final int[] result = new int[image.getWidth() * image.getHeight()];
+    List<Callable<Void>> tasks = new ArrayList<>(bands.length - 1);
+    for (int i = 0; i < bands.length - 1; ++i) {
+      final int band = i;
+      final ColorTable table = band == 0 ? this : fromRgb(palette);
+      tasks.add(new Callable<Void>() {
+        @Override public Void call() {
+          table.getIndices(image, skippedPixels, bands[band], bands[band + 1], result);
+          return null;
+        }
+      });
+    }
+    Parallel.invokeAll(executor, tasks);
     return result;
   }
+
+  private void getIndices(Image image, boolean[] skippedPixels, int startY, int endY,
+      int[] result) {
+    int width = image.getWidth();
+    int i = startY * width;
+    for (int y = startY; y < endY; ++y) {
+      for (int x = 0; x < width; ++x, ++i) {
+        if (skippedPixels == null || !skippedPixels[i]) {
+          result[i] = getIndex(image.getRgb(x, y));
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the index of the given color, packed as 0xRRGGBB.
+   *
+   * @throws IllegalArgumentException if the color is not in this table
+   */
+  int getIndex(int rgb) {
+    if (palette.length == 0) {
+      throw new IllegalArgumentException("Color table is empty");
+    }
+    if (cache == null) {
+      cache = new int[CACHE_SIZE];
+      Arrays.fill(cache, palette[0] << 8);
+    }
+    int cacheSlot = (rgb >>> 9 & 0x7C00) | (rgb >>> 6 & 0x3E0) | (rgb >>> 3 & 0x1F);
+    int entry = cache[cacheSlot];
+    if (entry >>> 8 == rgb) {
+      return entry & 0xFF;
+    }
+
+    int slot = findSlot(rgb);
+    if (tableKeys[slot] == EMPTY_KEY) {
+      throw new IllegalArgumentException(
+          String.format("Color not in color table: 0x%06X", rgb));
+    }
+    int index = tableIndices[slot];
+    cache[cacheSlot] = rgb << 8 | index;
+    return index;
+  }
+
+  private int findSlot(int rgb) {
+    int mask = tableKeys.length - 1;
+    int slot = (rgb * 0x9E3779B1 >>> 16) & mask;
+    while (tableKeys[slot] != EMPTY_KEY && tableKeys[slot] != rgb) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
 }
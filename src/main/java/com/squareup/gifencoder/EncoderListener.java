@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.gifencoder;
+
+/**
+ * Receives statistics about each image a {@link GifEncoder} writes, for monitoring. Set one with
+ * {@link EncoderOptions#setListener}.
+ */
+public interface EncoderListener {
+  /**
+   * Called once an image has been written to the output stream, in the order images are written.
+   * This is always called on the thread which added an image or finished encoding, never on an
+   * executor thread, so implementations need not be thread-safe unless they are shared between
+   * encoders. It should return quickly, as encoding waits for it.
+   */
+  void onImageWritten(ImageStats stats);
+}
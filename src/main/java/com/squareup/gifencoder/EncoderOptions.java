@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.gifencoder;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Options which apply to a whole GIF file, as opposed to {@link ImageOptions}, which apply to a
+ * single image.
+ */
+public final class EncoderOptions {
+  Executor executor = null;
+  int maxFramesInFlight = 2 * Runtime.getRuntime().availableProcessors();
+  boolean globalColorTable = false;
+  double globalColorTableMaxError = Double.POSITIVE_INFINITY;
+  boolean cropToChanges = false;
+  boolean transparentUnchangedPixels = false;
+  boolean mergeDuplicateImages = false;
+  EncoderListener listener = null;
+
+  /**
+   * Create a new {@link EncoderOptions} with all the defaults.
+   */
+  public EncoderOptions() {
+  }
+
+  /**
+   * Returns a copy of these options, so that later changes made by the caller don't affect a file
+   * which is still being encoded.
+   */
+  EncoderOptions copy() {
+    EncoderOptions copy = new EncoderOptions();
+    copy.executor = executor;
+    copy.maxFramesInFlight = maxFramesInFlight;
+    copy.globalColorTable = globalColorTable;
+    copy.globalColorTableMaxError = globalColorTableMaxError;
+    copy.cropToChanges = cropToChanges;
+    copy.transparentUnchangedPixels = transparentUnchangedPixels;
+    copy.mergeDuplicateImages = mergeDuplicateImages;
+    copy.listener = listener;
+    return copy;
+  }
+
+  /**
+   * Encode images on the given executor rather than on the thread which adds them. Each image's
+   * quantization, dithering and compression then runs in parallel with other images, while the
+   * results are still written to the output stream in the order the images were added.
+   *
+   * <p>When encoding asynchronously, {@link GifEncoder#addImage} returns before the image has been
+   * written, and errors encountered while encoding an image are thrown from a later call to
+   * {@code addImage} or {@link GifEncoder#finishEncoding}.
+   */
+  public EncoderOptions setExecutor(Executor executor) {
+    this.executor = executor;
+    return this;
+  }
+
+  /**
+   * Limit the number of images which may be encoding, or waiting to be written, at once. When the
+   * limit is reached, {@link GifEncoder#addImage} blocks until the oldest image is written. This
+   * bounds the memory used by asynchronous encoding. The default is twice the number of processors.
+   */
+  public EncoderOptions setMaxFramesInFlight(int maxFramesInFlight) {
+    if (maxFramesInFlight < 1) {
+      throw new IllegalArgumentException("maxFramesInFlight must be positive");
+    }
+    this.maxFramesInFlight = maxFramesInFlight;
+    return this;
+  }
+
+  /**
+   * Choose colors once, for the first image, and write them as a global color table. Later images
+   * are mapped onto those colors with their {@link ImageOptions#setDitherer ditherer}, rather than
+   * being quantized again, and no longer need a local color table of their own. This suits
+   * animations whose colors stay much the same from frame to frame.
+   */
+  public EncoderOptions setGlobalColorTable(boolean globalColorTable) {
+    this.globalColorTable = globalColorTable;
+    return this;
+  }
+
+  /**
+   * When using a global color table, give an image its own local color table instead if the mean
+   * distance from its pixels to the nearest global colors exceeds the given value. Distances are
+   * Euclidean, with each RGB component ranging over [0, 1]. By default every image uses the global
+   * color table, however far its colors have drifted.
+   */
+  public EncoderOptions setGlobalColorTableMaxError(double globalColorTableMaxError) {
+    if (!(globalColorTableMaxError >= 0)) {
+      throw new IllegalArgumentException("globalColorTableMaxError must not be negative");
+    }
+    this.globalColorTableMaxError = globalColorTableMaxError;
+    return this;
+  }
+
+  /**
+   * Keep track of what is on screen, and encode only the smallest rectangle of each image which
+   * differs from the images before it. The rest of the screen is left as it was, so every image is
+   * written with {@link DisposalMethod#DO_NOT_DISPOSE}, whatever its own options say. This greatly
+   * shrinks animations in which only a small region changes, such as screen recordings.
+   *
+   * <p>Images are compared before quantization, so pixels are only considered unchanged if their
+   * original colors are identical.
+   */
+  public EncoderOptions setCropToChanges(boolean cropToChanges) {
+    this.cropToChanges = cropToChanges;
+    return this;
+  }
+
+  /**
+   * Make pixels which are unchanged since the previous images transparent, so that what is already
+   * on screen shows through. Runs of transparent pixels compress very well. Like
+   * {@link #setCropToChanges}, with which it works well, this writes every image with
+   * {@link DisposalMethod#DO_NOT_DISPOSE}, and compares colors before quantization.
+   *
+   * <p>One index of each color table is reserved for transparency, leaving 255 for colors.
+   */
+  public EncoderOptions setTransparentUnchangedPixels(boolean transparentUnchangedPixels) {
+    this.transparentUnchangedPixels = transparentUnchangedPixels;
+    return this;
+  }
+
+  /**
+   * Merge an image which duplicates the one before it into that image, by adding its delay to
+   * the earlier image's delay rather than encoding it again. Images are duplicates if they have
+   * identical pixels, position and disposal method.
+   *
+   * <p>Each image is held back until the next one is added, so the pixels of an {@link Image}
+   * passed to {@link GifEncoder#addImage(Image, ImageOptions)} must not change until then.
+   */
+  public EncoderOptions setMergeDuplicateImages(boolean mergeDuplicateImages) {
+    this.mergeDuplicateImages = mergeDuplicateImages;
+    return this;
+  }
+
+  /**
+   * Report statistics about each image to the given listener once the image is written, such as
+   * how long each stage of encoding took and how large the result was. By default there is no
+   * listener, and nothing is measured.
+   */
+  public EncoderOptions setListener(EncoderListener listener) {
+    this.listener = listener;
+    return this;
+  }
+}
@@ -17,56 +17,113 @@ package com.squareup.gifencoder;
 
 import java.util.Set;
 
+/**
+ * Diffuses each pixel's quantization error onto its unvisited neighbors, with the classic 7/16,
+ * 3/16, 5/16 and 1/16 weights.
+ *
+ * <p>Only two rows of pixels are ever in flight, so rather than copying the image into a grid of
+ * {@link Color}s we keep those rows as arrays of raw components, and record each pixel's choice as
+ * an index into a {@link Palette}. No objects are allocated per pixel.
+ */
 public final class FloydSteinbergDitherer implements Ditherer {
   public static final FloydSteinbergDitherer INSTANCE = new FloydSteinbergDitherer();
 
-  private static final ErrorComponent[] ERROR_DISTRIBUTION = {
-      new ErrorComponent(1, 0, 7.0 / 16.0),
-      new ErrorComponent(-1, 1, 3.0 / 16.0),
-      new ErrorComponent(0, 1, 5.0 / 16.0),
-      new ErrorComponent(1, 1, 1.0 / 16.0)
-  };
+  private static final double ERROR_RIGHT = 7.0 / 16.0;
+  private static final double ERROR_BELOW_LEFT = 3.0 / 16.0;
+  private static final double ERROR_BELOW = 5.0 / 16.0;
+  private static final double ERROR_BELOW_RIGHT = 1.0 / 16.0;
 
   private FloydSteinbergDitherer() {
   }
 
   @Override public Image dither(Image image, Set<Color> newColors) {
+    Palette palette = new Palette(newColors);
+    int[] indices = ditherToIndices(image, palette, null);
+
     int width = image.getWidth();
     int height = image.getHeight();
     Color[][] colors = new Color[height][width];
+    int i = 0;
     for (int y = 0; y < height; ++y) {
       for (int x = 0; x < width; ++x) {
-        colors[y][x] = image.getColor(x, y);
+        colors[y][x] = palette.get(indices[i++]);
       }
     }
+    return Image.fromColors(colors);
+  }
 
+  /**
+   * Dither the given image, returning the position in {@code palette} of each pixel's replacement
+   * color, in row-major order.
+   *
+   * @param cache an optional cache of nearest colors in {@code palette}, or null
+   */
+  int[] ditherToIndices(Image image, Palette palette, NearestColorCache cache) {
+    int width = image.getWidth();
+    int height = image.getHeight();
+
+    // Each row holds the (r, g, b) components of one row of pixels, plus any error diffused onto
+    // them so far.
+    double[] row = new double[width * 3];
+    double[] nextRow = new double[width * 3];
+    readRow(image, 0, row);
+
+    int[] indices = new int[width * height];
+    int i = 0;
     for (int y = 0; y < height; ++y) {
+      boolean hasNextRow = y + 1 < height;
+      if (hasNextRow) {
+        readRow(image, y + 1, nextRow);
+      }
+
       for (int x = 0; x < width; ++x) {
-        Color originalColor = colors[y][x];
-        Color replacementColor = originalColor.getNearestColor(newColors);
-        colors[y][x] = replacementColor;
-        Color error = originalColor.minus(replacementColor);
+        int offset = x * 3;
+        int nearest = cache != null
+            ? cache.getNearestIndex(row[offset], row[offset + 1], row[offset + 2])
+            : palette.getNearestIndex(row[offset], row[offset + 1], row[offset + 2]);
+        indices[i++] = nearest;
 
-        for (ErrorComponent component : ERROR_DISTRIBUTION) {
-          int siblingX = x + component.deltaX, siblingY = y + component.deltaY;
-          if (siblingX >= 0 && siblingY >= 0 && siblingX < width && siblingY < height) {
-            Color errorComponent = error.scaled(component.errorFraction);
-            colors[siblingY][siblingX] = colors[siblingY][siblingX].plus(errorComponent);
+        Color nearestColor = palette.get(nearest);
+        for (int c = 0; c < 3; ++c) {
+          double error = row[offset + c] - nearestColor.getComponent(c);
+          if (x + 1 < width) {
+            row[offset + 3 + c] += ERROR_RIGHT * error;
+          }
+          if (hasNextRow) {
+            if (x > 0) {
+              nextRow[offset - 3 + c] += ERROR_BELOW_LEFT * error;
+            }
+            nextRow[offset + c] += ERROR_BELOW * error;
+            if (x + 1 < width) {
+              nextRow[offset + 3 + c] += ERROR_BELOW_RIGHT * error;
+            }
           }
         }
       }
+
+      double[] temp = row;
+      row = nextRow;
+      nextRow = temp;
     }
-    return Image.fromColors(colors);
+    return indices;
   }
 
-  private static final class ErrorComponent {
-    final int deltaX, deltaY;
-    final double errorFraction;
-
-    ErrorComponent(int deltaX, int deltaY, double errorFraction) {
-      this.deltaX = deltaX;
-      this.deltaY = deltaY;
-      this.errorFraction = errorFraction;
+  private static void readRow(Image image, int y, double[] row) {
+    int width = image.getWidth();
+    if (image.isPacked()) {
+      for (int x = 0; x < width; ++x) {
+        int rgb = image.getRgb(x, y);
+        row[x * 3] = (rgb >>> 16 & 0xFF) / 255.0;
+        row[x * 3 + 1] = (rgb >>> 8 & 0xFF) / 255.0;
+        row[x * 3 + 2] = (rgb & 0xFF) / 255.0;
+      }
+    } else {
+      for (int x = 0; x < width; ++x) {
+        Color color = image.getColor(x, y);
+        for (int c = 0; c < 3; ++c) {
+          row[x * 3 + c] = color.getComponent(c);
+        }
+      }
     }
   }
 }
@@ -15,15 +15,56 @@
  */
 package com.squareup.gifencoder;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashSet;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 public final class GifEncoder {
   private static final int MAX_COLOR_COUNT = 256;
 
   private final OutputStream outputStream;
   private final int screenWidth, screenHeight;
+  private final int loopCount;
+  private final EncoderOptions encoderOptions;
+
+  /**
+   * In global color table mode, the logical screen descriptor is only written once the first image
+   * has decided the global colors.
+   */
+  private boolean logicalScreenWritten;
+  private GlobalColorTable globalColorTable;
+
+  /**
+   * When comparing images with the ones before them, the color of each screen pixel as of the last
+   * image, packed as 0xRRGGBB, or -1 where no image has been drawn.
+   */
+  private int[] screen;
+
+  /**
+   * When merging duplicate images, the last image added, which is held back until we know whether
+   * the next one duplicates it.
+   */
+  private Image heldImage;
+  private ImageOptions heldOptions;
+
+  /**
+   * Images which have been submitted to the executor but not yet written, in the order they were
+   * added.
+   */
+  private final Deque<PendingImage> pendingImages = new ArrayDeque<>();
+
+  /**
+   * The number of images submitted for encoding so far, not counting merged duplicates.
+   */
+  private int imageCount;
 
   /**
    * Start creating a GIF file.
@@ -36,13 +77,50 @@ public final class GifEncoder {
    */
   public GifEncoder(OutputStream outputStream, int screenWidth, int screenHeight, int loopCount)
       throws IOException {
+    this(outputStream, screenWidth, screenHeight, loopCount, new EncoderOptions());
+  }
+
+  /**
+   * Start creating a GIF file.
+   *
+   * @param outputStream the output stream to which the GIF data will be written
+   * @param screenWidth the width of the entire graphic
+   * @param screenHeight the height of the entire graphic
+   * @param loopCount how many times to repeat the animation; use 0 to loop indefinitely
+   * @param encoderOptions options to be applied to the whole file, which are copied, so later
+   *     changes to them have no effect on this encoder
+   * @throws IOException if there was a problem writing to the given output stream
+   */
+  public GifEncoder(OutputStream outputStream, int screenWidth, int screenHeight, int loopCount,
+      EncoderOptions encoderOptions) throws IOException {
     this.outputStream = outputStream;
     this.screenWidth = screenWidth;
     this.screenHeight = screenHeight;
+    this.loopCount = loopCount;
+    this.encoderOptions = encoderOptions.copy();
     HeaderBlock.write(outputStream);
-    LogicalScreenDescriptorBlock.write(outputStream, screenWidth, screenHeight, false, 1, false, 0,
-        0, 0);
+    if (!this.encoderOptions.globalColorTable) {
+      writeLogicalScreen(null);
+    }
+  }
+
+  /**
+   * Write the logical screen descriptor, followed by the global color table if there is one, and
+   * the looping extension which must come after them.
+   */
+  private void writeLogicalScreen(ColorTable globalColorTable) throws IOException {
+    if (globalColorTable == null) {
+      LogicalScreenDescriptorBlock.write(outputStream, screenWidth, screenHeight, false, 1, false,
+          0, 0, 0);
+    } else {
+      int paddedSize = ColorTable.getPaddedSize(globalColorTable.size()
+          + (encoderOptions.transparentUnchangedPixels ? 1 : 0));
+      LogicalScreenDescriptorBlock.write(outputStream, screenWidth, screenHeight, true, 1, false,
+          getColorTableSizeField(paddedSize), 0, 0);
+      globalColorTable.write(outputStream, paddedSize);
+    }
     NetscapeLoopingExtensionBlock.write(outputStream, loopCount);
+    logicalScreenWritten = true;
   }
 
   /**
@@ -61,6 +139,9 @@ public final class GifEncoder {
   /**
    * Add an image to the GIF file.
    *
+   * <p>Unless images are being encoded asynchronously or held back to merge duplicates, the buffer
+   * is encoded in place rather than copied, so it must not be modified until this method returns.
+   *
    * @param rgbData an image buffer in RGB format
    * @param width the number of pixels per row in the pixel array
    * @param options options to be applied to this image
@@ -68,7 +149,10 @@ public final class GifEncoder {
    * @throws IOException if there was a problem writing to the given output stream
    */
   public GifEncoder addImage(int[] rgbData, int width, ImageOptions options) throws IOException {
-    addImage(Image.fromRgb(rgbData, width), options);
+    Image image = encoderOptions.executor != null || encoderOptions.mergeDuplicateImages
+        ? Image.fromRgb(rgbData, width)
+        : Image.wrapRgb(rgbData, width);
+    addImage(image, options);
     return this;
   }
 
@@ -80,6 +164,17 @@ public final class GifEncoder {
    * method.
    */
   public synchronized void finishEncoding() throws IOException {
+    if (heldImage != null) {
+      submitImage(heldImage, heldOptions);
+      heldImage = null;
+    }
+    if (!logicalScreenWritten) {
+      writeLogicalScreen(null);
+    }
+    while (!pendingImages.isEmpty()) {
+      writePendingImage();
+    }
+
     // The trailer block indicates when you've hit the end of the file.
     outputStream.write(0x3B);
   }
@@ -90,26 +185,435 @@ public final class GifEncoder {
       throw new IllegalArgumentException("Image does not fit in screen.");
     }
 
-    Multiset<Color> originalColors = image.getColors();
+    if (!encoderOptions.mergeDuplicateImages) {
+      submitImage(image, options);
+      return;
+    }
+
+    if (heldImage != null && isDuplicate(image, options)) {
+      heldOptions.delayCentiseconds += options.delayCentiseconds;
+      return;
+    }
+    if (heldImage != null) {
+      submitImage(heldImage, heldOptions);
+    }
+    heldImage = image;
+    heldOptions = options.copy();
+  }
+
+  /**
+   * Returns true if the given image would look just like the held image, so that the two can be
+   * merged into one with their delays added together.
+   */
+  private boolean isDuplicate(Image image, ImageOptions options) {
+    return options.left == heldOptions.left
+        && options.top == heldOptions.top
+        && options.disposalMethod == heldOptions.disposalMethod
+        // The delay is written as an unsigned short.
+        && heldOptions.delayCentiseconds + options.delayCentiseconds <= 0xFFFF
+        && image.hasSamePixels(heldImage);
+  }
+
+  /**
+   * Encode the given image, or start encoding it asynchronously, and write whatever images are
+   * ready.
+   */
+  private void submitImage(Image image, ImageOptions options) throws IOException {
+    final ImageStats stats = encoderOptions.listener != null ? new ImageStats(imageCount) : null;
+    ++imageCount;
+
+    boolean[] unchangedPixels = null;
+    if (encoderOptions.cropToChanges || encoderOptions.transparentUnchangedPixels) {
+      if (encoderOptions.transparentUnchangedPixels) {
+        unchangedPixels = new boolean[image.getNumPixels()];
+      }
+      int[] bounds = updateScreen(image, options.left, options.top, unchangedPixels);
+      options = options.copy().setDisposalMethod(DisposalMethod.DO_NOT_DISPOSE);
+      if (encoderOptions.cropToChanges) {
+        int cropWidth = bounds[2] - bounds[0], cropHeight = bounds[3] - bounds[1];
+        if (unchangedPixels != null) {
+          unchangedPixels = cropPixelFlags(unchangedPixels, image.getWidth(), bounds[0],
+              bounds[1], cropWidth, cropHeight);
+        }
+        image = image.crop(bounds[0], bounds[1], cropWidth, cropHeight);
+        options.setLeft(options.left + bounds[0]).setTop(options.top + bounds[1]);
+      }
+      if (unchangedPixels != null && !contains(unchangedPixels, true)) {
+        unchangedPixels = null;
+      }
+    }
+
+    ChosenColors chosenColors = null;
+    if (!logicalScreenWritten) {
+      // The first image decides the colors of the global color table, before any image is encoded.
+      // Unless some of its pixels are transparent, encoding it can then reuse what was learned.
+      chosenColors = chooseColors(image, options, getMaxColorCount(), unchangedPixels == null,
+          stats);
+      globalColorTable = new GlobalColorTable(chosenColors.colorTable.getPalette(),
+          getMaxColorCount(), encoderOptions.globalColorTableMaxError);
+      writeLogicalScreen(chosenColors.colorTable);
+      if (unchangedPixels != null) {
+        chosenColors = null;
+      }
+    }
+
+    if (encoderOptions.executor == null) {
+      encodeImage(image, options, unchangedPixels, globalColorTable, chosenColors, outputStream,
+          stats);
+      if (stats != null) {
+        encoderOptions.listener.onImageWritten(stats);
+      }
+      return;
+    }
+
+    final Image imageToEncode = image;
+    final ImageOptions optionsSnapshot = options.copy();
+    final boolean[] transparentPixels = unchangedPixels;
+    final GlobalColorTable global = globalColorTable;
+    final ChosenColors chosen = chosenColors;
+    FutureTask<byte[]> task = new FutureTask<>(new Callable<byte[]>() {
+      @Override public byte[] call() throws IOException {
+        ByteArrayOutputStream imageData = new ByteArrayOutputStream();
+        encodeImage(imageToEncode, optionsSnapshot, transparentPixels, global, chosen, imageData,
+            stats);
+        return imageData.toByteArray();
+      }
+    });
+    encoderOptions.executor.execute(task);
+    pendingImages.addLast(new PendingImage(task, stats));
+
+    // Write out whatever is ready, and wait for the oldest image if too many are in flight.
+    while (!pendingImages.isEmpty()
+        && (pendingImages.peekFirst().data.isDone()
+        || pendingImages.size() > encoderOptions.maxFramesInFlight)) {
+      writePendingImage();
+    }
+  }
+
+  /**
+   * The number of colors an image may use, leaving room for a transparent index if needed.
+   */
+  private int getMaxColorCount() {
+    return encoderOptions.transparentUnchangedPixels ? MAX_COLOR_COUNT - 1 : MAX_COLOR_COUNT;
+  }
+
+  /**
+   * Draw the given image onto our copy of the screen, returning the bounds of the pixels which
+   * changed, relative to the image, as {left, top, right, bottom}, with the right and bottom
+   * exclusive.
+   *
+   * @param unchangedPixels if not null, receives a flag for each pixel, in row-major order, which
+   *     is set if the pixel matches what is already on screen
+   */
+  private int[] updateScreen(Image image, int left, int top, boolean[] unchangedPixels) {
+    if (screen == null) {
+      screen = new int[screenWidth * screenHeight];
+      Arrays.fill(screen, -1);
+    }
+
+    int width = image.getWidth(), height = image.getHeight();
+    int minX = width, minY = height, maxX = -1, maxY = -1;
+    for (int y = 0; y < height; ++y) {
+      int rowOffset = (top + y) * screenWidth + left;
+      for (int x = 0; x < width; ++x) {
+        int rgb = image.getRgb(x, y);
+        if (screen[rowOffset + x] != rgb) {
+          screen[rowOffset + x] = rgb;
+          minX = Math.min(minX, x);
+          maxX = Math.max(maxX, x);
+          minY = Math.min(minY, y);
+          maxY = y;
+        } else if (unchangedPixels != null) {
+          unchangedPixels[y * width + x] = true;
+        }
+      }
+    }
+
+    if (maxX == -1) {
+      // Nothing changed, but we still need an image to carry this one's delay.
+      return new int[] {0, 0, 1, 1};
+    }
+    return new int[] {minX, minY, maxX + 1, maxY + 1};
+  }
+
+  private static boolean[] cropPixelFlags(boolean[] flags, int width, int cropLeft, int cropTop,
+      int cropWidth, int cropHeight) {
+    boolean[] croppedFlags = new boolean[cropWidth * cropHeight];
+    for (int y = 0; y < cropHeight; ++y) {
+      System.arraycopy(flags, (cropTop + y) * width + cropLeft, croppedFlags, y * cropWidth,
+          cropWidth);
+    }
+    return croppedFlags;
+  }
+
+  private static boolean contains(boolean[] flags, boolean value) {
+    for (boolean flag : flags) {
+      if (flag == value) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Wait for the oldest pending image to finish encoding, then write it to the output stream.
+   */
+  private void writePendingImage() throws IOException {
+    PendingImage pendingImage = pendingImages.removeFirst();
+    byte[] data = Parallel.await(pendingImage.data);
+    ImageStats stats = pendingImage.stats;
+    long start = startTiming(stats);
+    outputStream.write(data);
+    if (stats != null) {
+      // Encoding only wrote to memory, so this is the real write.
+      stats.writeNanos = System.nanoTime() - start;
+      encoderOptions.listener.onImageWritten(stats);
+    }
+  }
+
+  /**
+   * Returns the current time, for measuring how long a stage takes, or 0 if there are no stats to
+   * record the measurement in.
+   */
+  private static long startTiming(ImageStats stats) {
+    return stats != null ? System.nanoTime() : 0;
+  }
+
+  /**
+   * Choose at most {@code maxColorCount} colors to represent the given image, quantizing it if
+   * necessary.
+   *
+   * @param keepIndices whether to keep the image's indices if it can be indexed exactly
+   */
+  private static ChosenColors chooseColors(Image image, ImageOptions options, int maxColorCount,
+      boolean keepIndices, ImageStats stats) throws IOException {
+    long start = startTiming(stats);
+    IndexedImage indexedImage = null;
+    int[] exactPalette = null;
+    if (image.isPacked() && keepIndices) {
+      indexedImage = IndexedImage.tryIndex(image, maxColorCount);
+      exactPalette = indexedImage != null ? indexedImage.palette : null;
+    } else if (image.isPacked()) {
+      exactPalette = IndexedImage.tryFindPalette(image, maxColorCount);
+    }
+    if (stats != null) {
+      stats.indexNanos += System.nanoTime() - start;
+    }
+    if (exactPalette != null) {
+      return new ChosenColors(ColorTable.fromRgb(exactPalette), indexedImage, null);
+    }
+
+    start = startTiming(stats);
+    Multiset<Color> originalColors =
+        image.getColors(null, options.executor, options.rowBandSize);
     Set<Color> distinctColors = originalColors.getDistinctElements();
-    if (distinctColors.size() > MAX_COLOR_COUNT) {
-      distinctColors = options.quantizer.quantize(originalColors, MAX_COLOR_COUNT);
-      image = options.ditherer.dither(image, distinctColors);
+    if (stats != null) {
+      stats.histogramNanos += System.nanoTime() - start;
+    }
+    if (distinctColors.size() > maxColorCount) {
+      start = startTiming(stats);
+      distinctColors = options.quantizer.quantize(originalColors, maxColorCount);
+      if (stats != null) {
+        stats.quantizeNanos += System.nanoTime() - start;
+      }
+    }
+    return new ChosenColors(ColorTable.fromColors(distinctColors), null, originalColors);
+  }
+
+  /**
+   * Quantize, dither and compress the given image, writing the resulting blocks to the given
+   * stream. This touches no mutable state, so it may run on any thread.
+   *
+   * @param transparentPixels if not null, a flag for each pixel, in row-major order, which is set
+   *     if the pixel should be left transparent
+   * @param globalColorTable the global color table to use if the image is close enough to it, or
+   *     null if there is none
+   * @param chosenColors if the global colors were chosen from this image, what was learned about
+   *     it while choosing them, or null
+   * @param stats if not null, receives measurements of each stage
+   */
+  private static void encodeImage(Image image, ImageOptions options, boolean[] transparentPixels,
+      GlobalColorTable globalColorTable, ChosenColors chosenColors, OutputStream outputStream,
+      ImageStats stats)
+      throws IOException {
+    if (globalColorTable != null) {
+      int[] globalIndices;
+      if (chosenColors != null && chosenColors.indexedImage != null) {
+        // The global colors are this image's own colors, in the same order.
+        globalIndices = chosenColors.indexedImage.indices;
+        if (stats != null) {
+          stats.distinctColorCount = chosenColors.indexedImage.palette.length;
+        }
+      } else {
+        globalIndices = globalColorTable.getIndices(image, options, transparentPixels,
+            chosenColors != null ? chosenColors.imageColors : null, stats);
+      }
+      if (globalIndices != null) {
+        if (stats != null) {
+          stats.colorTableSize = globalColorTable.palette.length;
+          stats.globalColorTable = true;
+        }
+        writeImage(image, options, null, globalColorTable.palette.length,
+            globalColorTable.paddedSize, globalIndices, transparentPixels, outputStream, stats);
+        return;
+      }
+    }
+
+    // Transparent pixels take the index just past the last color.
+    int maxColorCount = transparentPixels != null ? MAX_COLOR_COUNT - 1 : MAX_COLOR_COUNT;
+
+    // Most images with few enough colors can be indexed in a single pass, with no quantization.
+    // That would give transparent pixels colors too, though, so those images take the long way.
+    long start = startTiming(stats);
+    IndexedImage indexedImage = image.isPacked() && transparentPixels == null
+        ? IndexedImage.tryIndex(image, maxColorCount)
+        : null;
+    if (stats != null) {
+      stats.indexNanos += System.nanoTime() - start;
+    }
+
+    ColorTable colorTable;
+    int[] colorIndices;
+    if (indexedImage != null) {
+      colorTable = ColorTable.fromRgb(indexedImage.palette);
+      colorIndices = indexedImage.indices;
+      if (stats != null) {
+        stats.distinctColorCount = indexedImage.palette.length;
+      }
+    } else {
+      // Transparent pixels need no color, so they shouldn't take up room in the color table.
+      start = startTiming(stats);
+      Multiset<Color> originalColors =
+          image.getColors(transparentPixels, options.executor, options.rowBandSize);
+      Set<Color> distinctColors = originalColors.getDistinctElements();
+      if (stats != null) {
+        stats.histogramNanos += System.nanoTime() - start;
+        stats.distinctColorCount = distinctColors.size();
+      }
+      if (distinctColors.size() <= maxColorCount) {
+        colorTable = ColorTable.fromColors(distinctColors);
+        start = startTiming(stats);
+        colorIndices = colorTable.getIndices(
+            image, transparentPixels, options.executor, options.rowBandSize);
+        if (stats != null) {
+          stats.indexNanos += System.nanoTime() - start;
+        }
+      } else {
+        start = startTiming(stats);
+        distinctColors = options.quantizer.quantize(originalColors, maxColorCount);
+        if (stats != null) {
+          stats.quantizeNanos += System.nanoTime() - start;
+        }
+        colorTable = ColorTable.fromColors(distinctColors);
+        colorIndices = ditherToIndices(image, options, distinctColors, colorTable, stats);
+      }
+    }
+    if (stats != null) {
+      stats.colorTableSize = colorTable.size();
+    }
+    int paddedColorCount =
+        ColorTable.getPaddedSize(colorTable.size() + (transparentPixels != null ? 1 : 0));
+    writeImage(image, options, colorTable, colorTable.size(), paddedColorCount, colorIndices,
+        transparentPixels, outputStream, stats);
+  }
+
+  /**
+   * Write an image whose pixels have been mapped to the given color indices.
+   *
+   * @param localColorTable the image's own color table, or null to use the global color table
+   * @param colorCount the number of colors in whichever color table the indices refer to; if any
+   *     pixels are transparent, this is also the transparent index
+   * @param paddedColorCount the padded size of that color table
+   * @param stats if not null, receives the compression time, bytes written and time spent writing
+   */
+  private static void writeImage(Image image, ImageOptions options, ColorTable localColorTable,
+      int colorCount, int paddedColorCount, int[] colorIndices, boolean[] transparentPixels,
+      OutputStream outputStream, ImageStats stats) throws IOException {
+    MeteredOutputStream meteredStream = null;
+    if (stats != null) {
+      meteredStream = new MeteredOutputStream(outputStream);
+      outputStream = meteredStream;
     }
 
-    ColorTable colorTable = ColorTable.fromColors(distinctColors);
-    int paddedColorCount = colorTable.paddedSize();
-    int[] colorIndices = colorTable.getIndices(image);
+    boolean transparent = transparentPixels != null;
+    if (transparent) {
+      for (int i = 0; i < colorIndices.length; ++i) {
+        if (transparentPixels[i]) {
+          colorIndices[i] = colorCount;
+        }
+      }
+    }
 
-    GraphicsControlExtensionBlock.write(outputStream, options.disposalMethod, false, false,
-        options.delayCentiseconds, 0);
+    GraphicsControlExtensionBlock.write(outputStream, options.disposalMethod, false, transparent,
+        options.delayCentiseconds, transparent ? colorCount : 0);
     ImageDescriptorBlock.write(outputStream, options.left, options.top, image.getWidth(),
-        image.getHeight(), true, false, false, getColorTableSizeField(paddedColorCount));
-    colorTable.write(outputStream);
+        image.getHeight(), localColorTable != null, false, false,
+        localColorTable != null ? getColorTableSizeField(paddedColorCount) : 0);
+    if (localColorTable != null) {
+      localColorTable.write(outputStream, paddedColorCount);
+    }
 
     LzwEncoder lzwEncoder = new LzwEncoder(paddedColorCount);
-    byte[] lzwData = lzwEncoder.encode(colorIndices);
-    ImageDataBlock.write(outputStream, lzwEncoder.getMinimumCodeSize(), lzwData);
+    long start = startTiming(stats);
+    long writeNanosBefore = meteredStream != null ? meteredStream.writeNanos : 0;
+    ImageDataBlock.write(outputStream, lzwEncoder, colorIndices, options.executor,
+        options.lzwSegmentCount);
+    if (stats != null) {
+      // Compressed data is written as it is produced, so leave the writing out of compression.
+      stats.compressNanos += System.nanoTime() - start
+          - (meteredStream.writeNanos - writeNanosBefore);
+      stats.writeNanos += meteredStream.writeNanos;
+      stats.byteCount += meteredStream.byteCount;
+      stats.lzwTableResetCount += lzwEncoder.getTableResetCount();
+    }
+  }
+
+  /**
+   * Dither the given image and look up the resulting colors in the color table. The built-in
+   * ditherers can produce palette indices directly, without building an intermediate image of
+   * {@link Color}s.
+   */
+  private static int[] ditherToIndices(Image image, ImageOptions options, Set<Color> colors,
+      ColorTable colorTable, ImageStats stats) throws IOException {
+    long start = startTiming(stats);
+    boolean floydSteinberg = options.ditherer instanceof FloydSteinbergDitherer;
+    if (!floydSteinberg && !(options.ditherer instanceof NearestColorDitherer)) {
+      Image ditheredImage = options.ditherer.dither(image, colors);
+      if (stats != null) {
+        stats.ditherNanos += System.nanoTime() - start;
+      }
+      start = startTiming(stats);
+      int[] indices = colorTable.getIndices(ditheredImage);
+      if (stats != null) {
+        stats.indexNanos += System.nanoTime() - start;
+      }
+      return indices;
+    }
+
+    Palette palette = new Palette(colors);
+    NearestColorCache cache = options.nearestColorCacheSize > 0
+        ? new NearestColorCache(palette, options.nearestColorCacheSize)
+        : null;
+    int[] indices = floydSteinberg
+        ? ((FloydSteinbergDitherer) options.ditherer).ditherToIndices(image, palette, cache)
+        : ((NearestColorDitherer) options.ditherer).ditherToIndices(
+            image, palette, cache, options.executor, options.rowBandSize);
+
+    int[] tableIndices = new int[palette.size()];
+    for (int i = 0; i < tableIndices.length; ++i) {
+      tableIndices[i] = colorTable.getIndex(palette.get(i).getRgbInt());
+    }
+    for (int i = 0; i < indices.length; ++i) {
+      indices[i] = tableIndices[indices[i]];
+    }
+    if (stats != null) {
+      stats.ditherNanos += System.nanoTime() - start;
+      if (cache != null) {
+        stats.nearestColorCacheHits += cache.getHitCount();
+        stats.nearestColorCacheMisses += cache.getMissCount();
+      }
+    }
+    return indices;
   }
 
   /**
@@ -126,4 +630,114 @@ public final class GifEncoder {
     }
     return size;
   }
+
+  /**
+   * The colors of the global color table, which images use in place of a local color table
+   * whenever they can be mapped onto them closely enough. Instances are immutable, so they may be
+   * shared by images encoding concurrently.
+   */
+  private static final class GlobalColorTable {
+    final int[] palette;
+    final int paddedSize;
+    final Set<Color> colors = new LinkedHashSet<>();
+    final Palette searchablePalette;
+    final double maxError;
+
+    /**
+     * @param maxColorCount the number of colors the table has room for, which is one less than
+     *     the usual 256 if a transparent index must be reserved
+     */
+    GlobalColorTable(int[] palette, int maxColorCount, double maxError) {
+      this.palette = palette;
+      this.paddedSize = ColorTable.getPaddedSize(
+          palette.length + (maxColorCount < MAX_COLOR_COUNT ? 1 : 0));
+      for (int rgb : palette) {
+        colors.add(Color.fromRgbInt(rgb));
+      }
+      this.searchablePalette = new Palette(colors);
+      this.maxError = maxError;
+    }
+
+    /**
+     * Map the given image onto the global colors, returning the index of each pixel's color, or
+     * null if the image strays too far from the global colors. Transparent pixels are ignored.
+     *
+     * @param imageColors the colors of the image's non-transparent pixels if they have already
+     *     been counted, or null
+     */
+    int[] getIndices(Image image, ImageOptions options, boolean[] transparentPixels,
+        Multiset<Color> imageColors, ImageStats stats) throws IOException {
+      long start;
+      if (imageColors == null) {
+        start = startTiming(stats);
+        imageColors = image.getColors(transparentPixels, options.executor, options.rowBandSize);
+        if (stats != null) {
+          stats.histogramNanos += System.nanoTime() - start;
+        }
+      }
+      if (stats != null) {
+        stats.distinctColorCount = imageColors.getDistinctElements().size();
+      }
+      double totalError = 0;
+      for (Color color : imageColors.getDistinctElements()) {
+        Color nearest = searchablePalette.getNearestColor(color);
+        totalError += imageColors.count(color) * color.getEuclideanDistanceTo(nearest);
+      }
+      if (totalError > maxError * imageColors.size()) {
+        return null;
+      }
+
+      // A fresh table per image, since tables cache lookups and are not thread-safe.
+      ColorTable colorTable = ColorTable.fromRgb(palette);
+      if (totalError == 0) {
+        // Every color is in the table already, so there is nothing to dither.
+        start = startTiming(stats);
+        int[] indices = colorTable.getIndices(
+            image, transparentPixels, options.executor, options.rowBandSize);
+        if (stats != null) {
+          stats.indexNanos += System.nanoTime() - start;
+        }
+        return indices;
+      }
+      return ditherToIndices(image, options, colors, colorTable, stats);
+    }
+  }
+
+  /**
+   * The colors chosen for a color table from some image, along with what was learned about the
+   * image along the way, so that encoding it need not repeat that work.
+   */
+  private static final class ChosenColors {
+    final ColorTable colorTable;
+
+    /**
+     * The image, indexed exactly by {@link #colorTable}, or null if it needed quantizing or its
+     * indices weren't kept.
+     */
+    final IndexedImage indexedImage;
+
+    /**
+     * The image's colors, or null if it didn't need quantizing.
+     */
+    final Multiset<Color> imageColors;
+
+    ChosenColors(ColorTable colorTable, IndexedImage indexedImage, Multiset<Color> imageColors) {
+      this.colorTable = colorTable;
+      this.indexedImage = indexedImage;
+      this.imageColors = imageColors;
+    }
+  }
+
+  /**
+   * An image being encoded asynchronously, along with the stats to report once it is written.
+   */
+  private static final class PendingImage {
+    final Future<byte[]> data;
+    final ImageStats stats;
+
+    PendingImage(Future<byte[]> data, ImageStats stats) {
+      this.data = data;
+      this.stats = stats;
+    }
+  }
 }
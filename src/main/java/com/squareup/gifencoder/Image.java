@@ -15,79 +15,361 @@
  */
 package com.squareup.gifencoder;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
 /**
  * An immutable grid of pixel colors.
+ *
+ * <p>Images created from RGB data keep their pixels packed into ints, four bytes per pixel, and
+ * only create {@link Color} instances on demand. Images created from a {@link ByteBuffer} read
+ * pixels straight out of the buffer whenever they are needed.
  */
 public final class Image {
-  /**
-   * The first index corresponds to the row, while the second index corresponds the column.
-   */
-  private final Color[][] colors;
+  private final Pixels pixels;
+  private final int width;
+  private final int height;
 
-  private Image(Color[][] colors) {
-    this.colors = colors;
+  private Image(Pixels pixels, int width, int height) {
+    this.pixels = pixels;
+    this.width = width;
+    this.height = height;
   }
 
   public static Image fromColors(Color[][] colors) {
-    return new Image(colors);
+    return new Image(new ColorPixels(colors, 0, 0), colors[0].length, colors.length);
   }
 
   public static Image fromRgb(int[][] rgb) {
     int height = rgb.length;
     int width = rgb[0].length;
-    Color[][] colors = new Color[height][width];
+    int[] packed = new int[width * height];
     for (int y = 0; y < height; ++y) {
       if (rgb[y].length != width) {
         throw new IllegalArgumentException("rows lengths do not match in RGB array");
       }
-      for (int x = 0; x < width; ++x) {
-        colors[y][x] = Color.fromRgbInt(rgb[y][x]);
-      }
+      System.arraycopy(rgb[y], 0, packed, y * width, width);
     }
-    return new Image(colors);
+    return wrapRgb(packed, 0, width, height, width);
   }
 
   public static Image fromRgb(int[] rgb, int width) {
+    return wrapRgb(rgb.clone(), width);
+  }
+
+  /**
+   * Like {@link #fromRgb(int[], int)}, but uses the given array directly rather than copying it.
+   * The caller must not modify the array while the image is in use.
+   */
+  static Image wrapRgb(int[] rgb, int width) {
     if (rgb.length % width != 0) {
       throw new IllegalArgumentException("the given width does not divide the number of pixels");
     }
+    return wrapRgb(rgb, 0, width, rgb.length / width, width);
+  }
 
-    int height = rgb.length / width;
-    Color[][] colors = new Color[height][width];
-    for (int y = 0; y < height; ++y) {
-      for (int x = 0; x < width; ++x) {
-        colors[y][x] = Color.fromRgbInt(rgb[y * width + x]);
-      }
+  /**
+   * Create an image backed by a region of a packed RGB array, without copying it. Pixel (x, y) is
+   * read from {@code rgb[offset + y * stride + x]}; the alpha channel, if any, is ignored.
+   */
+  static Image wrapRgb(int[] rgb, int offset, int width, int height, int stride) {
+    if (width <= 0 || height <= 0 || stride < width || offset < 0
+        || offset + (long) (height - 1) * stride + width > rgb.length) {
+      throw new IllegalArgumentException("image region does not fit in the RGB array");
+    }
+    return new Image(new RgbPixels(rgb, offset, stride), width, height);
+  }
+
+  /**
+   * Create an image which reads its pixels directly from a buffer of raw frame data, such as a
+   * {@link java.nio.MappedByteBuffer} obtained from {@link java.nio.channels.FileChannel#map}. No
+   * pixel data is copied, so the buffer's contents must not change while the image is in use.
+   *
+   * @param buffer the frame data; the first pixel is at the buffer's current position, which is
+   *     not modified
+   * @param format the layout of each pixel
+   * @param width the number of pixels per row
+   * @param height the number of rows
+   * @param rowStride the number of bytes from the start of one row to the start of the next
+   */
+  public static Image fromBuffer(ByteBuffer buffer, PixelFormat format, int width, int height,
+      int rowStride) {
+    int offset = buffer.position();
+    if (width <= 0 || height <= 0 || rowStride < width * format.bytesPerPixel
+        || offset + (long) (height - 1) * rowStride + width * format.bytesPerPixel
+        > buffer.limit()) {
+      throw new IllegalArgumentException("image region does not fit in the buffer");
     }
-    return new Image(colors);
+    return new Image(new BufferPixels(buffer, format, offset, rowStride), width, height);
+  }
+
+  /**
+   * Like {@link #fromBuffer(ByteBuffer, PixelFormat, int, int, int)}, for buffers whose rows are
+   * tightly packed.
+   */
+  public static Image fromBuffer(ByteBuffer buffer, PixelFormat format, int width, int height) {
+    return fromBuffer(buffer, format, width, height, width * format.bytesPerPixel);
+  }
+
+  /**
+   * Returns a view of the given rectangle of this image, sharing its pixels.
+   */
+  Image crop(int left, int top, int width, int height) {
+    if (left < 0 || top < 0 || width <= 0 || height <= 0
+        || left + width > this.width || top + height > this.height) {
+      throw new IllegalArgumentException("crop region does not fit in the image");
+    }
+    return new Image(pixels.crop(left, top), width, height);
   }
 
   public Color getColor(int x, int y) {
-    return colors[y][x];
+    return pixels.getColor(x, y);
   }
 
   public Color getColor(int index) {
-    return colors[index / getWidth()][index % getWidth()];
+    return getColor(index % width, index / width);
+  }
+
+  /**
+   * Returns the color at (x, y), packed as 0xRRGGBB.
+   */
+  int getRgb(int x, int y) {
+    return pixels.getRgb(x, y);
+  }
+
+  /**
+   * Returns true if this image's pixels are stored as 24-bit RGB values, so that {@link #getRgb}
+   * represents them exactly. Images created from arbitrary {@link Color}s return false.
+   */
+  boolean isPacked() {
+    return !(pixels instanceof ColorPixels);
   }
 
   Multiset<Color> getColors() {
-    Multiset<Color> colorCounts = new HashMultiset<>();
-    for (int i = 0; i < getNumPixels(); ++i) {
-      Color color = getColor(i);
-      colorCounts.add(color);
+    return getColors(null);
+  }
+
+  /**
+   * Count the colors of this image, leaving out any pixels whose flag is set.
+   *
+   * @param excludedPixels a flag for each pixel in row-major order, or null to exclude none
+   */
+  Multiset<Color> getColors(boolean[] excludedPixels) {
+    if (!isPacked()) {
+      Multiset<Color> colorCounts = new HashMultiset<>();
+      for (int i = 0; i < getNumPixels(); ++i) {
+        if (excludedPixels == null || !excludedPixels[i]) {
+          colorCounts.add(getColor(i));
+        }
+      }
+      return colorCounts;
+    }
+
+    return countRows(excludedPixels, 0, height, null);
+  }
+
+  /**
+   * Like {@link #getColors(boolean[])}, but counts bands of rows in parallel on the given executor,
+   * as split by {@link Parallel#splitRows}. Only images created from RGB data are split.
+   *
+   * <p>The bands' histograms are merged by adding each band's colors in the order they first
+   * appeared in it. Colors then reach the merged histogram in the same order as they would in a
+   * single pass, so it comes out identical, down to its iteration order.
+   */
+  Multiset<Color> getColors(final boolean[] excludedPixels, Executor executor, int bandSize)
+      throws IOException {
+    final int[] bands = Parallel.splitRows(width, height, executor, bandSize);
+    if (!isPacked() || bands.length <= 2) {
+      return getColors(excludedPixels);
+    }
+
+    List<Callable<ColorBand>> tasks = new ArrayList<>(bands.length - 1);
+    for (int i = 0; i < bands.length - 1; ++i) {
+      final int band = i;
+      tasks.add(new Callable<ColorBand>() {
+        @Override public ColorBand call() {
+          ColorBand colorBand = new ColorBand();
+          colorBand.histogram = countRows(excludedPixels, bands[band], bands[band + 1], colorBand);
+          return colorBand;
+        }
+      });
+    }
+    List<ColorBand> colorBands = Parallel.invokeAll(executor, tasks);
+
+    // The first band's histogram is already what a single pass would have built so far.
+    ColorHistogram histogram = colorBands.get(0).histogram;
+    for (int i = 1; i < colorBands.size(); ++i) {
+      ColorBand colorBand = colorBands.get(i);
+      for (int j = 0; j < colorBand.newColorCount; ++j) {
+        int rgb = colorBand.newColors[j];
+        histogram.addRgb(rgb, colorBand.histogram.countRgb(rgb));
+      }
+    }
+    return histogram;
+  }
+
+  /**
+   * Count the colors of the given rows of this packed image.
+   *
+   * @param colorBand if not null, records each color in the order it first appears
+   */
+  private ColorHistogram countRows(boolean[] excludedPixels, int startY, int endY,
+      ColorBand colorBand) {
+    ColorHistogram histogram = new ColorHistogram();
+    int i = startY * width;
+    for (int y = startY; y < endY; ++y) {
+      for (int x = 0; x < width; ++x, ++i) {
+        if (excludedPixels == null || !excludedPixels[i]) {
+          int rgb = pixels.getRgb(x, y);
+          if (histogram.addRgb(rgb, 1) && colorBand != null) {
+            colorBand.addNewColor(rgb);
+          }
+        }
+      }
     }
-    return colorCounts;
+    return histogram;
+  }
+
+  /**
+   * Returns true if the given image has the same dimensions and pixel colors as this one.
+   */
+  boolean hasSamePixels(Image other) {
+    if (width != other.width || height != other.height) {
+      return false;
+    }
+    boolean packed = isPacked() && other.isPacked();
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x) {
+        boolean same = packed
+            ? pixels.getRgb(x, y) == other.pixels.getRgb(x, y)
+            : pixels.getColor(x, y).equals(other.pixels.getColor(x, y));
+        if (!same) {
+          return false;
+        }
+      }
+    }
+    return true;
   }
 
   public int getWidth() {
-    return colors[0].length;
+    return width;
   }
 
   public int getHeight() {
-    return colors.length;
+    return height;
   }
 
   public int getNumPixels() {
-    return getWidth() * getHeight();
+    return width * height;
+  }
+
+  /**
+   * The colors counted in one band of rows, and the order in which they first appeared.
+   */
+  private static final class ColorBand {
+    ColorHistogram histogram;
+    int[] newColors = new int[64];
+    int newColorCount;
+
+    void addNewColor(int rgb) {
+      if (newColorCount == newColors.length) {
+        newColors = Arrays.copyOf(newColors, newColorCount * 2);
+      }
+      newColors[newColorCount++] = rgb;
+    }
+  }
+
+  private abstract static class Pixels {
+    abstract Color getColor(int x, int y);
+
+    abstract int getRgb(int x, int y);
+
+    /**
+     * Returns pixels whose origin is at (left, top) of these.
+     */
+    abstract Pixels crop(int left, int top);
+  }
+
+  /**
+   * The first index corresponds to the row, while the second index corresponds the column.
+   */
+  private static final class ColorPixels extends Pixels {
+    final Color[][] colors;
+    final int left;
+    final int top;
+
+    ColorPixels(Color[][] colors, int left, int top) {
+      this.colors = colors;
+      this.left = left;
+      this.top = top;
+    }
+
+    @Override Color getColor(int x, int y) {
+      return colors[top + y][left + x];
+    }
+
+    @Override int getRgb(int x, int y) {
+      return getColor(x, y).getRgbInt();
+    }
+
+    @Override Pixels crop(int left, int top) {
+      return new ColorPixels(colors, this.left + left, this.top + top);
+    }
+  }
+
+  private static final class RgbPixels extends Pixels {
+    final int[] rgb;
+    final int offset;
+    final int stride;
+
+    RgbPixels(int[] rgb, int offset, int stride) {
+      this.rgb = rgb;
+      this.offset = offset;
+      this.stride = stride;
+    }
+
+    @Override Color getColor(int x, int y) {
+      return Color.fromRgbInt(getRgb(x, y));
+    }
+
+    @Override int getRgb(int x, int y) {
+      return rgb[offset + y * stride + x] & 0xFFFFFF;
+    }
+
+    @Override Pixels crop(int left, int top) {
+      return new RgbPixels(rgb, offset + top * stride + left, stride);
+    }
+  }
+
+  private static final class BufferPixels extends Pixels {
+    final ByteBuffer buffer;
+    final PixelFormat format;
+    final int offset;
+    final int rowStride;
+
+    BufferPixels(ByteBuffer buffer, PixelFormat format, int offset, int rowStride) {
+      this.buffer = buffer;
+      this.format = format;
+      this.offset = offset;
+      this.rowStride = rowStride;
+    }
+
+    @Override Color getColor(int x, int y) {
+      return Color.fromRgbInt(getRgb(x, y));
+    }
+
+    @Override int getRgb(int x, int y) {
+      return format.getRgb(buffer, offset + y * rowStride + x * format.bytesPerPixel);
+    }
+
+    @Override Pixels crop(int left, int top) {
+      int cropOffset = offset + top * rowStride + left * format.bytesPerPixel;
+      return new BufferPixels(buffer, format, cropOffset, rowStride);
+    }
   }
 }
@@ -17,20 +17,19 @@ package com.squareup.gifencoder;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.Executor;
 
 final class ImageDataBlock {
   private ImageDataBlock() {
   }
 
-  static void write(OutputStream outputStream, int minimumCodeSize, byte[] lzwData)
-      throws IOException {
-    outputStream.write(minimumCodeSize);
-    int index = 0;
-    while (index < lzwData.length) {
-      int subBlockLength = Math.min(lzwData.length - index, 255);
-      outputStream.write(subBlockLength);
-      outputStream.write(lzwData, index, subBlockLength);
-      index += subBlockLength;
+  static void write(OutputStream outputStream, LzwEncoder lzwEncoder, int[] colorIndices,
+      Executor executor, int segmentCount) throws IOException {
+    outputStream.write(lzwEncoder.getMinimumCodeSize());
+    if (executor != null && segmentCount > 1) {
+      lzwEncoder.encode(colorIndices, outputStream, executor, segmentCount);
+    } else {
+      lzwEncoder.encode(colorIndices, outputStream);
     }
     outputStream.write(0);
   }
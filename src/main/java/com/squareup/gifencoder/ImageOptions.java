@@ -15,15 +15,20 @@
  */
 package com.squareup.gifencoder;
 
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
 public final class ImageOptions {
   int left = 0;
   int top = 0;
-  ColorQuantizer quantizer = MedianCutQuantizer.INSTANCE;
+  ColorQuantizer quantizer = WuQuantizer.INSTANCE;
   Ditherer ditherer = FloydSteinbergDitherer.INSTANCE;
   DisposalMethod disposalMethod = DisposalMethod.UNSPECIFIED;
   int delayCentiseconds = 0;
+  Executor executor = null;
+  int lzwSegmentCount = 1;
+  int nearestColorCacheSize = 0;
+  int rowBandSize = 0;
 
   /**
    * Create a new {@link ImageOptions} with all the defaults.
@@ -31,6 +36,25 @@ public final class ImageOptions {
   public ImageOptions() {
   }
 
+  /**
+   * Returns a copy of these options, so that later changes made by the caller don't affect an image
+   * which is still being encoded.
+   */
+  ImageOptions copy() {
+    ImageOptions copy = new ImageOptions();
+    copy.left = left;
+    copy.top = top;
+    copy.quantizer = quantizer;
+    copy.ditherer = ditherer;
+    copy.disposalMethod = disposalMethod;
+    copy.delayCentiseconds = delayCentiseconds;
+    copy.executor = executor;
+    copy.lzwSegmentCount = lzwSegmentCount;
+    copy.nearestColorCacheSize = nearestColorCacheSize;
+    copy.rowBandSize = rowBandSize;
+    return copy;
+  }
+
   public ImageOptions setLeft(int left) {
     this.left = left;
     return this;
@@ -60,4 +84,66 @@ public final class ImageOptions {
     this.delayCentiseconds = (int) (unit.toMillis(duration) / 10);
     return this;
   }
+
+  /**
+   * Use the given executor to parallelize work within this image, as configured by other options
+   * such as {@link #setLzwSegmentCount}. The thread adding the image takes part in this work, so it
+   * is safe to use the same executor as {@link EncoderOptions#setExecutor}.
+   */
+  public ImageOptions setExecutor(Executor executor) {
+    this.executor = executor;
+    return this;
+  }
+
+  /**
+   * Compress this image as the given number of independent segments, which run in parallel on the
+   * executor given to {@link #setExecutor}. Each segment starts with an empty code table, so this
+   * costs a little compression, but it is the only way to spread the compression of a single large
+   * image across several cores. The default is 1, meaning no segmentation.
+   */
+  public ImageOptions setLzwSegmentCount(int lzwSegmentCount) {
+    if (lzwSegmentCount < 1) {
+      throw new IllegalArgumentException("lzwSegmentCount must be positive");
+    }
+    this.lzwSegmentCount = lzwSegmentCount;
+    return this;
+  }
+
+  /**
+   * Remember the nearest palette color for up to the given number of recently seen colors while
+   * dithering with {@link FloydSteinbergDitherer} or {@link NearestColorDitherer}. This pays off
+   * for frames which reuse a limited set of colors, such as screen recordings. The size is rounded
+   * up to a power of two. The default is 0, meaning no cache.
+   *
+   * <p>Cached colors are rounded to 24-bit RGB. With error diffusion the colors being looked up
+   * carry fractional error, so this can change which palette color a pixel gets, slightly.
+   */
+  public ImageOptions setNearestColorCacheSize(int nearestColorCacheSize) {
+    if (nearestColorCacheSize < 0) {
+      throw new IllegalArgumentException("nearestColorCacheSize must not be negative");
+    }
+    this.nearestColorCacheSize = nearestColorCacheSize;
+    return this;
+  }
+
+  /**
+   * Split the passes which treat each pixel on its own into bands of rows with at least the given
+   * number of pixels, which run in parallel on the executor given to {@link #setExecutor}. This
+   * covers counting the image's colors, looking up pixels in the color table, and
+   * {@link NearestColorDitherer}. Images smaller than two bands stay on the calling thread. The
+   * output is the same either way. The default is 0, meaning no splitting.
+   *
+   * <p>Each band counts its colors separately before they are merged, which costs extra work for
+   * images with many distinct colors, so bands of a few hundred thousand pixels work best.
+   *
+   * <p>{@link FloydSteinbergDitherer} carries error from each row to the next, so it always runs
+   * as a single band.
+   */
+  public ImageOptions setRowBandSize(int rowBandSize) {
+    if (rowBandSize < 0) {
+      throw new IllegalArgumentException("rowBandSize must not be negative");
+    }
+    this.rowBandSize = rowBandSize;
+    return this;
+  }
 }
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.gifencoder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Statistics about one encoded image, reported to an {@link EncoderListener}.
+ *
+ * <p>Stage times are measured on whichever thread ran the stage, so with an executor they overlap
+ * with other images' work, and they do not add up to the wall-clock time spent on an image. A stage
+ * which didn't apply to an image, such as quantizing an image with few enough colors, takes no
+ * time.
+ */
+public final class ImageStats {
+  final int imageIndex;
+  long histogramNanos;
+  long quantizeNanos;
+  long ditherNanos;
+  long indexNanos;
+  long compressNanos;
+  long writeNanos;
+  int distinctColorCount;
+  int colorTableSize;
+  boolean globalColorTable;
+  long byteCount;
+  int lzwTableResetCount;
+  long nearestColorCacheHits;
+  long nearestColorCacheMisses;
+
+  ImageStats(int imageIndex) {
+    this.imageIndex = imageIndex;
+  }
+
+  /**
+   * The position of this image in the file, starting from 0. Images merged into the one before them
+   * are not written, so they don't count.
+   */
+  public int getImageIndex() {
+    return imageIndex;
+  }
+
+  /**
+   * Time spent counting the image's colors.
+   */
+  public long getHistogramTime(TimeUnit unit) {
+    return unit.convert(histogramNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Time spent in {@link ColorQuantizer#quantize}.
+   */
+  public long getQuantizeTime(TimeUnit unit) {
+    return unit.convert(quantizeNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Time spent mapping pixels onto quantized or global colors with the image's {@link Ditherer}.
+   */
+  public long getDitherTime(TimeUnit unit) {
+    return unit.convert(ditherNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Time spent looking up the color table index of each pixel, other than as part of dithering.
+   */
+  public long getIndexTime(TimeUnit unit) {
+    return unit.convert(indexNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Time spent on LZW compression.
+   */
+  public long getCompressTime(TimeUnit unit) {
+    return unit.convert(compressNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Time spent writing to the encoder's output stream.
+   */
+  public long getWriteTime(TimeUnit unit) {
+    return unit.convert(writeNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * The number of distinct colors in the image, not counting transparent pixels.
+   */
+  public int getDistinctColorCount() {
+    return distinctColorCount;
+  }
+
+  /**
+   * The number of colors in the color table the image uses, not counting padding or a transparent
+   * index.
+   */
+  public int getColorTableSize() {
+    return colorTableSize;
+  }
+
+  /**
+   * Returns true if the image uses the global color table, rather than a local one.
+   */
+  public boolean usesGlobalColorTable() {
+    return globalColorTable;
+  }
+
+  /**
+   * The number of bytes written for the image, including its extension and descriptor blocks and
+   * any local color table.
+   */
+  public long getByteCount() {
+    return byteCount;
+  }
+
+  /**
+   * The number of times the LZW code table filled up and had to be reset while compressing the
+   * image. Frequent resets mean the image's pixels have little repetition for LZW to exploit.
+   */
+  public int getLzwTableResetCount() {
+    return lzwTableResetCount;
+  }
+
+  /**
+   * The number of pixels whose nearest palette color was found in the cache configured with
+   * {@link ImageOptions#setNearestColorCacheSize}, or 0 if there was no cache.
+   */
+  public long getNearestColorCacheHits() {
+    return nearestColorCacheHits;
+  }
+
+  /**
+   * The number of pixels whose nearest palette color had to be searched for, despite the cache
+   * configured with {@link ImageOptions#setNearestColorCacheSize}, or 0 if there was no cache.
+   */
+  public long getNearestColorCacheMisses() {
+    return nearestColorCacheMisses;
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.gifencoder;
+
+import java.util.Arrays;
+
+/**
+ * An image expressed as a palette of RGB colors plus one palette index per pixel.
+ */
+final class IndexedImage {
+  private static final int EMPTY_KEY = -1;
+
+  /**
+   * The distinct colors of the image, packed as 0xRRGGBB, in order of first appearance.
+   */
+  final int[] palette;
+
+  /**
+   * The palette index of each pixel, in row-major order.
+   */
+  final int[] indices;
+
+  private IndexedImage(int[] palette, int[] indices) {
+    this.palette = palette;
+    this.indices = indices;
+  }
+
+  /**
+   * Index the given image exactly, without any quantization. This gives up as soon as it finds more
+   * than {@code maxColorCount} distinct colors, so images which need quantizing cost little more
+   * than a scan of their first few pixels. The index array grows as rows are scanned, so giving up
+   * early also allocates little.
+   *
+   * @return the indexed image, or null if the image has too many colors
+   */
+  static IndexedImage tryIndex(Image image, int maxColorCount) {
+    Scan scan = new Scan(image, maxColorCount, true);
+    return scan.run() ? new IndexedImage(scan.getPalette(), scan.indices) : null;
+  }
+
+  /**
+   * Like {@link #tryIndex}, for callers which only need the palette. No indices are stored.
+   *
+   * @return the image's distinct colors, packed as 0xRRGGBB, in order of first appearance, or null
+   *     if the image has too many colors
+   */
+  static int[] tryFindPalette(Image image, int maxColorCount) {
+    Scan scan = new Scan(image, maxColorCount, false);
+    return scan.run() ? scan.getPalette() : null;
+  }
+
+  private static final class Scan {
+    private static final int INITIAL_INDEX_CAPACITY = 1 << 12;
+
+    final Image image;
+    final int maxColorCount;
+    final int mask;
+    final int[] tableKeys;
+    final int[] tableIndices;
+    final int[] palette;
+    int paletteSize;
+
+    /**
+     * The palette index of each pixel scanned so far, or null if indices aren't wanted.
+     */
+    int[] indices;
+
+    Scan(Image image, int maxColorCount, boolean storeIndices) {
+      if (!image.isPacked()) {
+        throw new IllegalArgumentException("Only packed RGB images can be indexed exactly");
+      }
+      this.image = image;
+      this.maxColorCount = maxColorCount;
+
+      // Keep the table at most half full, so probe sequences stay short.
+      int tableSize = GifMath.roundUpToPowerOfTwo(maxColorCount * 2);
+      this.mask = tableSize - 1;
+      this.tableKeys = new int[tableSize];
+      this.tableIndices = new int[tableSize];
+      Arrays.fill(tableKeys, EMPTY_KEY);
+      this.palette = new int[maxColorCount];
+      if (storeIndices) {
+        this.indices = new int[Math.min(image.getNumPixels(), INITIAL_INDEX_CAPACITY)];
+      }
+    }
+
+    /**
+     * Returns false as soon as more than {@code maxColorCount} distinct colors are found.
+     */
+    boolean run() {
+      int width = image.getWidth(), height = image.getHeight();
+      int i = 0;
+      for (int y = 0; y < height; ++y) {
+        if (indices != null && i + width > indices.length) {
+          int capacity = Math.max(indices.length * 2, i + width);
+          indices = Arrays.copyOf(indices, Math.min(capacity, image.getNumPixels()));
+        }
+        for (int x = 0; x < width; ++x, ++i) {
+          int rgb = image.getRgb(x, y);
+          int slot = (rgb * 0x9E3779B1 >>> 16) & mask;
+          while (tableKeys[slot] != EMPTY_KEY && tableKeys[slot] != rgb) {
+            slot = (slot + 1) & mask;
+          }
+          if (tableKeys[slot] == EMPTY_KEY) {
+            if (paletteSize == maxColorCount) {
+              return false;
+            }
+            tableKeys[slot] = rgb;
+            tableIndices[slot] = paletteSize;
+            palette[paletteSize++] = rgb;
+          }
+          if (indices != null) {
+            indices[i] = tableIndices[slot];
+          }
+        }
+      }
+      return true;
+    }
+
+    int[] getPalette() {
+      return Arrays.copyOf(palette, paletteSize);
+    }
+  }
+}
@@ -15,75 +15,408 @@
  */
 package com.squareup.gifencoder;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Uses k-means clustering for color quantization. This tends to yield good results, but convergence
- * can be slow. It is not recommended for large images.
+ * Uses k-means clustering for color quantization. This tends to yield good results, but takes
+ * longer than the other quantizers.
+ *
+ * <p>Clusters start from the colors chosen by {@link MedianCutQuantizer}, which are already close
+ * to a good answer. By default, every distinct color is then reassigned to its nearest centroid in
+ * each round, using Hamerly's bounds on the distances to the nearest and second nearest centroids
+ * to skip most of the distance computations, until no color changes cluster or the iteration
+ * budget runs out. {@link #withSampleSize} switches to mini-batch updates, which look at a random
+ * sample of the image's pixels in each round, for images with very many colors.
+ *
+ * <p>Unless cut short by {@link #withTimeLimit a time limit}, the result depends only on the
+ * original colors, these settings and the seed.
  */
 public final class KMeansQuantizer implements ColorQuantizer {
-  public static final KMeansQuantizer INSTANCE = new KMeansQuantizer();
+  public static final KMeansQuantizer INSTANCE = new KMeansQuantizer(100, 0, 0, 0);
+
+  private final int maxIterations;
+  private final long timeLimitNanos;
+  private final int sampleSize;
+  private final long seed;
+
+  private KMeansQuantizer(int maxIterations, long timeLimitNanos, int sampleSize, long seed) {
+    this.maxIterations = maxIterations;
+    this.timeLimitNanos = timeLimitNanos;
+    this.sampleSize = sampleSize;
+    this.seed = seed;
+  }
 
-  private KMeansQuantizer() {
+  /**
+   * Returns a quantizer like this one which stops after the given number of rounds, even if the
+   * clusters are still changing. The default is 100.
+   */
+  public KMeansQuantizer withMaxIterations(int maxIterations) {
+    if (maxIterations < 1) {
+      throw new IllegalArgumentException("maxIterations must be positive");
+    }
+    return new KMeansQuantizer(maxIterations, timeLimitNanos, sampleSize, seed);
+  }
+
+  /**
+   * Returns a quantizer like this one which stops once the given time has passed, checked after
+   * each round, even if the clusters are still changing. The default is 0, meaning no limit.
+   */
+  public KMeansQuantizer withTimeLimit(long duration, TimeUnit unit) {
+    if (duration < 0) {
+      throw new IllegalArgumentException("duration must not be negative");
+    }
+    return new KMeansQuantizer(maxIterations, unit.toNanos(duration), sampleSize, seed);
+  }
+
+  /**
+   * Returns a quantizer like this one which, when there are more distinct colors than the given
+   * number, updates the centroids from that many randomly chosen pixels in each round, rather than
+   * from every color. Each round then costs the same however many colors the image has, at some
+   * cost in quality. The default is 0, meaning every color is used in every round.
+   */
+  public KMeansQuantizer withSampleSize(int sampleSize) {
+    if (sampleSize < 0) {
+      throw new IllegalArgumentException("sampleSize must not be negative");
+    }
+    return new KMeansQuantizer(maxIterations, timeLimitNanos, sampleSize, seed);
+  }
+
+  /**
+   * Returns a quantizer like this one which seeds its random sampling with the given value. The
+   * default is 0.
+   */
+  public KMeansQuantizer withSeed(long seed) {
+    return new KMeansQuantizer(maxIterations, timeLimitNanos, sampleSize, seed);
   }
 
   @Override public Set<Color> quantize(Multiset<Color> originalColors, int maxColorCount) {
-    Map<Color, Multiset<Color>> clustersByCentroid = new LinkedHashMap<>();
-    Set<Color> centroidsToRecompute = getInitialCentroids(originalColors, maxColorCount);
-    for (Color centroid : centroidsToRecompute) {
-      clustersByCentroid.put(centroid, new HashMultiset<Color>());
-    }
-    for (Color color : originalColors.getDistinctElements()) {
-      int count = originalColors.count(color);
-      clustersByCentroid.get(color.getNearestColor(centroidsToRecompute)).add(color, count);
-    }
-
-    while (!centroidsToRecompute.isEmpty()) {
-      recomputeCentroids(clustersByCentroid, centroidsToRecompute);
-      centroidsToRecompute.clear();
-
-      Set<Color> allCentroids = clustersByCentroid.keySet();
-      for (Color centroid : clustersByCentroid.keySet()) {
-        Multiset<Color> cluster = clustersByCentroid.get(centroid);
-        for (Color color : new ArrayList<>(cluster.getDistinctElements())) {
-          Color newCentroid = color.getNearestColor(allCentroids);
-          if (newCentroid != centroid) {
-            int count = cluster.count(color);
-            Multiset<Color> newCluster = clustersByCentroid.get(newCentroid);
-
-            cluster.remove(color, count);
-            newCluster.add(color, count);
-
-            centroidsToRecompute.add(centroid);
-            centroidsToRecompute.add(newCentroid);
-          }
+    long startTime = System.nanoTime();
+    Points points = new Points(originalColors);
+    if (points.size <= maxColorCount) {
+      // Every color can have a cluster of its own.
+      Centroids centroids = new Centroids(points.size);
+      for (int i = 0; i < points.size; ++i) {
+        centroids.set(i, points.red[i], points.green[i], points.blue[i]);
+        centroids.weights[i] = points.weights[i];
+      }
+      return centroids.toColors(points.componentScale);
+    }
+
+    Set<Color> initialColors = MedianCutQuantizer.INSTANCE.quantize(originalColors, maxColorCount);
+    Centroids centroids = new Centroids(initialColors.size());
+    int j = 0;
+    for (Color color : initialColors) {
+      centroids.set(j++, color.getComponent(0) * points.componentScale,
+          color.getComponent(1) * points.componentScale,
+          color.getComponent(2) * points.componentScale);
+    }
+
+    if (sampleSize > 0 && sampleSize < points.size) {
+      runMiniBatches(points, centroids, startTime);
+    } else {
+      runHamerly(points, centroids, startTime);
+    }
+    return centroids.toColors(points.componentScale);
+  }
+
+  private boolean outOfTime(long startTime) {
+    return timeLimitNanos > 0 && System.nanoTime() - startTime >= timeLimitNanos;
+  }
+
+  /**
+   * Lloyd's algorithm, accelerated with Hamerly's bounds. For each color we track an upper bound
+   * on the distance to its centroid, and a lower bound on the distance to any other centroid. A
+   * color can only change clusters if its upper bound exceeds both its lower bound and half the
+   * distance from its centroid to the next nearest centroid, which after the first few rounds is
+   * rare.
+   */
+  private void runHamerly(Points points, Centroids centroids, long startTime) {
+    int n = points.size, k = centroids.size;
+    int[] assignments = new int[n];
+    double[] upperBounds = new double[n];
+    double[] lowerBounds = new double[n];
+    double[] redSums = new double[k];
+    double[] greenSums = new double[k];
+    double[] blueSums = new double[k];
+    double[] halfGaps = new double[k];
+    double[] moves = new double[k];
+
+    for (int i = 0; i < n; ++i) {
+      centroids.findNearestTwo(points.red[i], points.green[i], points.blue[i]);
+      int nearest = centroids.nearest;
+      assignments[i] = nearest;
+      upperBounds[i] = centroids.nearestDistance;
+      lowerBounds[i] = centroids.secondNearestDistance;
+      double weight = points.weights[i];
+      redSums[nearest] += points.red[i] * weight;
+      greenSums[nearest] += points.green[i] * weight;
+      blueSums[nearest] += points.blue[i] * weight;
+      centroids.weights[nearest] += weight;
+    }
+
+    for (int iteration = 0; iteration < maxIterations && !outOfTime(startTime); ++iteration) {
+      // Move each centroid to the mean of its colors, and loosen the bounds to match.
+      int farthest = -1, secondFarthest = -1;
+      for (int c = 0; c < k; ++c) {
+        moves[c] = 0;
+        double weight = centroids.weights[c];
+        if (weight > 0) {
+          double red = redSums[c] / weight;
+          double green = greenSums[c] / weight;
+          double blue = blueSums[c] / weight;
+          moves[c] = Math.sqrt(centroids.getSquaredDistance(c, red, green, blue));
+          centroids.set(c, red, green, blue);
         }
+        if (farthest == -1 || moves[c] > moves[farthest]) {
+          secondFarthest = farthest;
+          farthest = c;
+        } else if (secondFarthest == -1 || moves[c] > moves[secondFarthest]) {
+          secondFarthest = c;
+        }
+      }
+      for (int i = 0; i < n; ++i) {
+        upperBounds[i] += moves[assignments[i]];
+        lowerBounds[i] -= assignments[i] == farthest
+            ? (secondFarthest != -1 ? moves[secondFarthest] : 0)
+            : moves[farthest];
+      }
+
+      for (int c = 0; c < k; ++c) {
+        halfGaps[c] = Math.sqrt(centroids.getSquaredDistanceToNearestOther(c)) / 2;
+      }
+
+      boolean changed = false;
+      for (int i = 0; i < n; ++i) {
+        int assignment = assignments[i];
+        double bound = Math.max(halfGaps[assignment], lowerBounds[i]);
+        if (upperBounds[i] <= bound) {
+          continue;
+        }
+        double red = points.red[i], green = points.green[i], blue = points.blue[i];
+        upperBounds[i] = Math.sqrt(centroids.getSquaredDistance(assignment, red, green, blue));
+        if (upperBounds[i] <= bound) {
+          continue;
+        }
+
+        centroids.findNearestTwo(red, green, blue);
+        int nearest = centroids.nearest;
+        upperBounds[i] = centroids.nearestDistance;
+        lowerBounds[i] = centroids.secondNearestDistance;
+        if (nearest != assignment) {
+          double weight = points.weights[i];
+          redSums[assignment] -= red * weight;
+          greenSums[assignment] -= green * weight;
+          blueSums[assignment] -= blue * weight;
+          centroids.weights[assignment] -= weight;
+          redSums[nearest] += red * weight;
+          greenSums[nearest] += green * weight;
+          blueSums[nearest] += blue * weight;
+          centroids.weights[nearest] += weight;
+          assignments[i] = nearest;
+          changed = true;
+        }
+      }
+      if (!changed) {
+        break;
       }
     }
 
-    return clustersByCentroid.keySet();
+    // Settle the centroids of the last round's clusters.
+    for (int c = 0; c < k; ++c) {
+      double weight = centroids.weights[c];
+      if (weight > 0) {
+        centroids.set(c, redSums[c] / weight, greenSums[c] / weight, blueSums[c] / weight);
+      }
+    }
   }
 
-  private static void recomputeCentroids(Map<Color, Multiset<Color>> clustersByCentroid,
-      Set<Color> centroidsToRecompute) {
-    for (Color oldCentroid : centroidsToRecompute) {
-      Multiset<Color> cluster = clustersByCentroid.get(oldCentroid);
-      Color newCentroid = Color.getCentroid(cluster);
-      clustersByCentroid.remove(oldCentroid);
-      clustersByCentroid.put(newCentroid, cluster);
+  /**
+   * Sculley's mini-batch k-means. Each round draws a sample of pixels, finds each one's nearest
+   * centroid, then pulls those centroids towards them, by less each time a centroid has been
+   * pulled before.
+   */
+  private void runMiniBatches(Points points, Centroids centroids, long startTime) {
+    // Sampling is by pixel, not by distinct color, so busy colors are drawn more often.
+    double[] cumulativeWeights = new double[points.size];
+    double totalWeight = 0;
+    for (int i = 0; i < points.size; ++i) {
+      totalWeight += points.weights[i];
+      cumulativeWeights[i] = totalWeight;
+    }
+
+    Random random = new Random(seed);
+    int[] samples = new int[sampleSize];
+    int[] sampleCentroids = new int[sampleSize];
+    double[] pullCounts = new double[centroids.size];
+    for (int iteration = 0; iteration < maxIterations && !outOfTime(startTime); ++iteration) {
+      for (int s = 0; s < sampleSize; ++s) {
+        int sample = Arrays.binarySearch(cumulativeWeights, random.nextDouble() * totalWeight);
+        // A miss gives the insertion point, which is the color whose range contains the value.
+        samples[s] = sample >= 0 ? sample : -sample - 1;
+        int i = samples[s];
+        sampleCentroids[s] = centroids.findNearest(points.red[i], points.green[i], points.blue[i]);
+      }
+      for (int s = 0; s < sampleSize; ++s) {
+        int i = samples[s], c = sampleCentroids[s];
+        double rate = 1 / ++pullCounts[c];
+        centroids.set(c,
+            centroids.red[c] + rate * (points.red[i] - centroids.red[c]),
+            centroids.green[c] + rate * (points.green[i] - centroids.green[c]),
+            centroids.blue[c] + rate * (points.blue[i] - centroids.blue[c]));
+      }
     }
+    // Every centroid stands for some colors, even if no sample reached it.
+    Arrays.fill(centroids.weights, 1);
   }
 
-  private static Set<Color> getInitialCentroids(Multiset<Color> originalColors, int maxColorCount) {
-    // We use the Forgy initialization method: choose random colors as initial cluster centroids.
-    List<Color> colorList = new ArrayList<>(originalColors.getDistinctElements());
-    Collections.shuffle(colorList);
-    return new HashSet<>(colorList.subList(0, maxColorCount));
+  /**
+   * The distinct colors being clustered, and their pixel counts, in parallel arrays.
+   */
+  private static final class Points {
+    final int size;
+    final double[] red;
+    final double[] green;
+    final double[] blue;
+    final double[] weights;
+
+    /**
+     * Components are stored multiplied by this. Colors from a {@link ColorHistogram} keep their
+     * 8-bit components, so that a color alone in its cluster comes out unchanged.
+     */
+    final double componentScale;
+
+    Points(Multiset<Color> colors) {
+      if (colors instanceof ColorHistogram) {
+        long[] rgbCounts = ((ColorHistogram) colors).getRgbCounts();
+        size = rgbCounts.length;
+        red = new double[size];
+        green = new double[size];
+        blue = new double[size];
+        weights = new double[size];
+        componentScale = 255;
+        for (int i = 0; i < size; ++i) {
+          int rgb = (int) rgbCounts[i];
+          red[i] = rgb >>> 16 & 0xFF;
+          green[i] = rgb >>> 8 & 0xFF;
+          blue[i] = rgb & 0xFF;
+          weights[i] = rgbCounts[i] >>> 32;
+        }
+      } else {
+        Set<Color> distinctColors = colors.getDistinctElements();
+        size = distinctColors.size();
+        red = new double[size];
+        green = new double[size];
+        blue = new double[size];
+        weights = new double[size];
+        componentScale = 1;
+        int i = 0;
+        for (Color color : distinctColors) {
+          red[i] = color.getComponent(0);
+          green[i] = color.getComponent(1);
+          blue[i] = color.getComponent(2);
+          weights[i] = colors.count(color);
+          ++i;
+        }
+      }
+    }
+  }
+
+  private static final class Centroids {
+    final int size;
+    final double[] red;
+    final double[] green;
+    final double[] blue;
+
+    /**
+     * The pixel count of each centroid's cluster. Centroids whose clusters have emptied are left
+     * out of the result.
+     */
+    final double[] weights;
+
+    /** The results of the last {@link #findNearestTwo} call. */
+    int nearest;
+    double nearestDistance;
+    double secondNearestDistance;
+
+    Centroids(int size) {
+      this.size = size;
+      this.red = new double[size];
+      this.green = new double[size];
+      this.blue = new double[size];
+      this.weights = new double[size];
+    }
+
+    void set(int c, double red, double green, double blue) {
+      this.red[c] = red;
+      this.green[c] = green;
+      this.blue[c] = blue;
+    }
+
+    double getSquaredDistance(int c, double red, double green, double blue) {
+      double dr = red - this.red[c], dg = green - this.green[c], db = blue - this.blue[c];
+      return dr * dr + dg * dg + db * db;
+    }
+
+    double getSquaredDistanceToNearestOther(int c) {
+      double min = Double.POSITIVE_INFINITY;
+      for (int other = 0; other < size; ++other) {
+        if (other != c) {
+          min = Math.min(min, getSquaredDistance(other, red[c], green[c], blue[c]));
+        }
+      }
+      return min;
+    }
+
+    /** Find the index of the centroid nearest the given color. */
+    int findNearest(double red, double green, double blue) {
+      double first = Double.POSITIVE_INFINITY;
+      int nearest = 0;
+      for (int c = 0; c < size; ++c) {
+        double distance = getSquaredDistance(c, red, green, blue);
+        if (distance < first) {
+          first = distance;
+          nearest = c;
+        }
+      }
+      return nearest;
+    }
+
+    /**
+     * Find the centroid nearest the given color, and the distances to it and to the next nearest
+     * centroid, which is infinite if there is only one. The results are left in {@link #nearest},
+     * {@link #nearestDistance} and {@link #secondNearestDistance}, so the search allocates
+     * nothing.
+     */
+    void findNearestTwo(double red, double green, double blue) {
+      double first = Double.POSITIVE_INFINITY, second = Double.POSITIVE_INFINITY;
+      nearest = 0;
+      for (int c = 0; c < size; ++c) {
+        double distance = getSquaredDistance(c, red, green, blue);
+        if (distance < first) {
+          second = first;
+          first = distance;
+          nearest = c;
+        } else if (distance < second) {
+          second = distance;
+        }
+      }
+      nearestDistance = Math.sqrt(first);
+      secondNearestDistance = Math.sqrt(second);
+    }
+
+    Set<Color> toColors(double componentScale) {
+      Set<Color> colors = new HashSet<>();
+      for (int c = 0; c < size; ++c) {
+        if (weights[c] > 0) {
+          colors.add(new Color(
+              red[c] / componentScale, green[c] / componentScale, blue[c] / componentScale));
+        }
+      }
+      return colors;
+    }
   }
 }
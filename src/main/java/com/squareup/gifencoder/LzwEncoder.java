@@ -15,34 +15,59 @@
  */
 package com.squareup.gifencoder;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.BitSet;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 
 /**
  * For background, see Appendix F of the
  * <a href="http://www.w3.org/Graphics/GIF/spec-gif89a.txt">GIF spec</a>.
+ *
+ * <p>Every code in the table (other than the roots) represents some shorter code followed by a
+ * single index, so rather than storing index sequences we key the table on (prefix code, index)
+ * pairs. These are packed into ints and kept in an open-addressed hash table, which means each
+ * pixel costs a single probe and no allocation.
  */
 final class LzwEncoder {
 
-  // Dummy values to represent special, GIF-specific instructions.
-  private static final List<Integer> CLEAR_CODE = Collections.singletonList(-1);
-  private static final List<Integer> END_OF_INFO = Collections.singletonList(-2);
-
   /**
    * The specification stipulates that code size may not exceed 12 bits.
    */
   private static final int MAX_CODE_TABLE_SIZE = 1 << 12;
 
+  /**
+   * The number of bits needed to hold any code or index, used when packing (prefix, index) keys.
+   */
+  private static final int MAX_CODE_BITS = 12;
+
+  /**
+   * We keep the hash table at most half full, so probe sequences stay short.
+   */
+  private static final int HASH_TABLE_BITS = MAX_CODE_BITS + 1;
+  private static final int HASH_TABLE_SIZE = 1 << HASH_TABLE_BITS;
+  private static final int EMPTY_KEY = -1;
+  private static final int NO_CODE = -1;
+
+  /**
+   * How many indices to encode between draining complete sub-blocks when streaming. Each index
+   * produces at most two codes, so this bounds the buffered output to well under a kilobyte.
+   */
+  private static final int STREAMING_CHUNK_SIZE = 256;
+
   private final int minimumCodeSize;
-  private final BitSet outputBits = new BitSet();
-  private int position = 0;
-  private Map<List<Integer>, Integer> codeTable;
+  private final int clearCode;
+  private final int endOfInfoCode;
+  private final int[] tableKeys = new int[HASH_TABLE_SIZE];
+  private final int[] tableCodes = new int[HASH_TABLE_SIZE];
+  private int nextCode;
   private int codeSize;
-  private List<Integer> indexBuffer = new ArrayList<>();
+  private int prefixCode = NO_CODE;
+  private BitWriter output;
+  private int tableResetCount;
 
   /**
    * @param colorTableSize Size of the (padded) color table; must be a power of 2
@@ -52,6 +77,11 @@ final class LzwEncoder {
       throw new IllegalArgumentException("Color table size must be a power of 2");
     }
     this.minimumCodeSize = computeMinimumCodeSize(colorTableSize);
+
+    // The spec indicates that CLEAR_CODE must have a value of 2**minimumCodeSize. Thus we reserve
+    // the first 2**minimumCodeSize codes for colors, even if our color table is smaller.
+    this.clearCode = 1 << minimumCodeSize;
+    this.endOfInfoCode = clearCode + 1;
     resetCodeTableAndCodeSize();
   }
 
@@ -59,6 +89,14 @@ final class LzwEncoder {
     return minimumCodeSize;
   }
 
+  /**
+   * The number of times the code table has filled up and been reset so far. Clear codes which join
+   * independently encoded segments are not counted.
+   */
+  int getTableResetCount() {
+    return tableResetCount;
+  }
+
   /**
    * This computes what the spec refers to as "code size". The actual starting code size will be one
    * bit larger than this, because of the special "clear" and "end of info" codes.
@@ -72,58 +110,161 @@ final class LzwEncoder {
   }
 
   byte[] encode(int[] indices) {
-    writeCode(codeTable.get(CLEAR_CODE));
-    for (int index : indices) {
-      processIndex(index);
+    BitWriter output = new BitWriter();
+    begin(output);
+    processIndices(indices, 0, indices.length);
+    end();
+    return output.toByteArray();
+  }
+
+  /**
+   * Encode the given indices, writing the result to {@code outputStream} as a series of data
+   * sub-blocks. Each sub-block is written as soon as it fills, so the compressed image is never
+   * held in memory in full. This does not write the minimum code size or the block terminator.
+   */
+  void encode(int[] indices, OutputStream outputStream) throws IOException {
+    BitWriter output = new BitWriter();
+    begin(output);
+    for (int start = 0; start < indices.length; start += STREAMING_CHUNK_SIZE) {
+      processIndices(indices, start, Math.min(start + STREAMING_CHUNK_SIZE, indices.length));
+      output.writeCompleteSubBlocks(outputStream);
+    }
+    end();
+    output.writeSubBlocks(outputStream);
+  }
+
+  /**
+   * Like {@link #encode(int[], OutputStream)}, but splits the indices into {@code segmentCount}
+   * segments which are compressed independently on the given executor, each starting from an empty
+   * code table. The segments are joined with clear codes, which is how the spec allows an encoder
+   * to reset its table at any point. Compressed segments are held in memory until all are done.
+   */
+  void encode(final int[] indices, OutputStream outputStream, Executor executor,
+      int segmentCount) throws IOException {
+    segmentCount = Math.max(1, Math.min(segmentCount, indices.length));
+    final int[] segmentTableResetCounts = new int[segmentCount];
+    List<Callable<BitWriter>> tasks = new ArrayList<>(segmentCount);
+    for (int i = 0; i < segmentCount; ++i) {
+      final int start = (int) ((long) indices.length * i / segmentCount);
+      final int end = (int) ((long) indices.length * (i + 1) / segmentCount);
+      final boolean first = i == 0;
+      final boolean last = i == segmentCount - 1;
+      final int segment = i;
+      tasks.add(new Callable<BitWriter>() {
+        @Override public BitWriter call() {
+          LzwEncoder segmentEncoder = new LzwEncoder(clearCode);
+          BitWriter output = new BitWriter();
+          if (first) {
+            segmentEncoder.begin(output);
+          } else {
+            segmentEncoder.output = output;
+          }
+          segmentEncoder.processIndices(indices, start, end);
+          if (last) {
+            segmentEncoder.end();
+          } else {
+            segmentEncoder.endSegment();
+          }
+          segmentTableResetCounts[segment] = segmentEncoder.tableResetCount;
+          return output;
+        }
+      });
+    }
+
+    List<BitWriter> segments = Parallel.invokeAll(executor, tasks);
+    for (int count : segmentTableResetCounts) {
+      tableResetCount += count;
+    }
+    BitWriter output = segments.get(0);
+    for (int i = 1; i < segments.size(); ++i) {
+      output.append(segments.get(i));
+      output.writeCompleteSubBlocks(outputStream);
     }
-    writeCode(codeTable.get(indexBuffer));
-    writeCode(codeTable.get(END_OF_INFO));
-    return toBytes();
+    output.writeSubBlocks(outputStream);
+  }
+
+  private void begin(BitWriter output) {
+    this.output = output;
+    writeCode(clearCode);
+  }
+
+  private void processIndices(int[] indices, int start, int end) {
+    for (int i = start; i < end; ++i) {
+      processIndex(indices[i]);
+    }
+  }
+
+  private void end() {
+    if (prefixCode != NO_CODE) {
+      writeCode(prefixCode);
+    }
+    writeCode(endOfInfoCode);
+    output.flush();
+  }
+
+  /**
+   * Finish a segment which will be followed by another, independently encoded segment. Rather than
+   * writing "end of info", this writes a clear code so that the decoder resets its table.
+   */
+  private void endSegment() {
+    if (prefixCode != NO_CODE) {
+      writeCode(prefixCode);
+    }
+    // On reading the code above, a decoder adds one last entry to its table, which may widen its
+    // codes before it reads our clear code.
+    if (nextCode == 1 << codeSize && codeSize < MAX_CODE_BITS) {
+      ++codeSize;
+    }
+    writeCode(clearCode);
   }
 
   private void processIndex(int index) {
-    List<Integer> extendedIndexBuffer = append(indexBuffer, index);
-    if (codeTable.containsKey(extendedIndexBuffer)) {
-      indexBuffer = extendedIndexBuffer;
+    if (prefixCode == NO_CODE) {
+      // Every single index is a root of the code table, so it is its own code.
+      prefixCode = index;
+      return;
+    }
+
+    int key = prefixCode << MAX_CODE_BITS | index;
+    int slot = findSlot(key);
+    if (tableKeys[slot] == key) {
+      prefixCode = tableCodes[slot];
     } else {
-      writeCode(codeTable.get(indexBuffer));
-      if (codeTable.size() == MAX_CODE_TABLE_SIZE) {
-        writeCode(codeTable.get(CLEAR_CODE));
+      writeCode(prefixCode);
+      if (nextCode == MAX_CODE_TABLE_SIZE) {
+        writeCode(clearCode);
         resetCodeTableAndCodeSize();
+        ++tableResetCount;
       } else {
-        addCodeToTable(extendedIndexBuffer);
+        addCodeToTable(slot, key);
       }
-      indexBuffer = Collections.singletonList(index);
+      prefixCode = index;
     }
   }
 
   /**
-   * Write the given code to the output stream.
+   * Returns the slot holding the given key, or the empty slot where it should be inserted.
    */
-  private void writeCode(int code) {
-    for (int shift = 0; shift < codeSize; ++shift) {
-      boolean bit = (code >>> shift & 1) != 0;
-      outputBits.set(position++, bit);
+  private int findSlot(int key) {
+    int mask = HASH_TABLE_SIZE - 1;
+    int slot = (key * 0x9E3779B1) >>> (Integer.SIZE - HASH_TABLE_BITS);
+    while (tableKeys[slot] != EMPTY_KEY && tableKeys[slot] != key) {
+      slot = (slot + 1) & mask;
     }
+    return slot;
   }
 
   /**
-   * Convert our stream of bits into a byte array, as described in the spec.
+   * Write the given code to the output stream.
    */
-  private byte[] toBytes() {
-    int bitCount = position;
-    byte[] result = new byte[(bitCount + 7) / 8];
-    for (int i = 0; i < bitCount; ++i) {
-      int byteIndex = i / 8;
-      int bitIndex = i % 8;
-      result[byteIndex] |= (outputBits.get(i) ? 1 : 0) << bitIndex;
-    }
-    return result;
+  private void writeCode(int code) {
+    output.write(code, codeSize);
   }
 
-  private void addCodeToTable(List<Integer> indices) {
-    int newCode = codeTable.size();
-    codeTable.put(indices, newCode);
+  private void addCodeToTable(int slot, int key) {
+    int newCode = nextCode++;
+    tableKeys[slot] = key;
+    tableCodes[slot] = newCode;
 
     if (newCode == 1 << codeSize) {
       // The next code won't fit in {@code codeSize} bits, so we need to increment.
@@ -132,29 +273,10 @@ final class LzwEncoder {
   }
 
   private void resetCodeTableAndCodeSize() {
-    this.codeTable = defaultCodeTable();
+    Arrays.fill(tableKeys, EMPTY_KEY);
+    nextCode = endOfInfoCode + 1;
 
     // We add an extra bit because of the special "clear" and "end of info" codes.
     this.codeSize = minimumCodeSize + 1;
   }
-
-  private Map<List<Integer>, Integer> defaultCodeTable() {
-    Map<List<Integer>, Integer> codeTable = new HashMap<>();
-
-    // The spec indicates that CLEAR_CODE must have a value of 2**minimumCodeSize. Thus we reserve
-    // the first 2**minimumCodeSize codes for colors, even if our color table is smaller.
-    int colorsInCodeTable = 1 << minimumCodeSize;
-    for (int i = 0; i < colorsInCodeTable; ++i) {
-      codeTable.put(Collections.singletonList(i), i);
-    }
-    codeTable.put(CLEAR_CODE, codeTable.size());
-    codeTable.put(END_OF_INFO, codeTable.size());
-    return codeTable;
-  }
-
-  private static <T> List<T> append(List<T> list, T value) {
-    ArrayList<T> result = new ArrayList<>(list);
-    result.add(value);
-    return result;
-  }
 }
@@ -15,15 +15,9 @@
  */
 package com.squareup.gifencoder;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
-import java.util.TreeSet;
 
 /**
  * Implements median cut quantization.
@@ -38,96 +32,246 @@ import java.util.TreeSet;
  *   <li>Split the cluster into two halves, using that median as a threshold.</li>
  *   <li>Repeat this process until the desired number of clusters is reached.</li>
  * </ul>
+ *
+ * <p>The distinct colors and their counts are kept in a single array, and each cluster is a range
+ * of it. Splitting a cluster partitions its range in place around the weighted median, without
+ * sorting, so a split costs time proportional to the cluster's distinct colors, however many
+ * pixels share them. A cluster's median falls between two distinct colors, so clusters with a
+ * single color are never split, and an image with no more distinct colors than wanted keeps them
+ * all.
  */
 public final class MedianCutQuantizer implements ColorQuantizer {
   public static final MedianCutQuantizer INSTANCE = new MedianCutQuantizer();
 
+  /**
+   * Each entry of the color array holds the red, green and blue components, then the count.
+   */
+  private static final int ENTRY_SIZE = 4;
+  private static final int COUNT = 3;
+
   private MedianCutQuantizer() {
   }
 
   @Override public Set<Color> quantize(Multiset<Color> originalColors, int maxColorCount) {
-    TreeSet<Cluster> clusters = new TreeSet<>(new ClusterSpreadComparator());
-    clusters.add(new Cluster(originalColors));
-
-    while (clusters.size() < maxColorCount) {
-      Cluster clusterWithLargestSpread = clusters.pollFirst();
-      clusters.addAll(clusterWithLargestSpread.split());
+    double[] entries;
+    double componentScale;
+    if (originalColors instanceof ColorHistogram) {
+      // Keep 8-bit components, which sum exactly, so that colors alone in a cluster come out
+      // unchanged.
+      componentScale = 255;
+      long[] rgbCounts = ((ColorHistogram) originalColors).getRgbCounts();
+      entries = new double[rgbCounts.length * ENTRY_SIZE];
+      for (int i = 0; i < rgbCounts.length; ++i) {
+        int rgb = (int) rgbCounts[i];
+        entries[i * ENTRY_SIZE] = rgb >>> 16 & 0xFF;
+        entries[i * ENTRY_SIZE + 1] = rgb >>> 8 & 0xFF;
+        entries[i * ENTRY_SIZE + 2] = rgb & 0xFF;
+        entries[i * ENTRY_SIZE + COUNT] = rgbCounts[i] >>> 32;
+      }
+    } else {
+      componentScale = 1;
+      Set<Color> distinctColors = originalColors.getDistinctElements();
+      entries = new double[distinctColors.size() * ENTRY_SIZE];
+      int offset = 0;
+      for (Color color : distinctColors) {
+        for (int component = 0; component < 3; ++component) {
+          entries[offset + component] = color.getComponent(component);
+        }
+        entries[offset + COUNT] = originalColors.count(color);
+        offset += ENTRY_SIZE;
+      }
+    }
+    if (entries.length == 0) {
+      return new HashSet<>();
     }
 
-    Set<Color> clusterCentroids = new HashSet<>();
-    for (Cluster cluster : clusters) {
-      clusterCentroids.add(Color.getCentroid(cluster.colors));
+    Clusters clusters = new Clusters(entries, Math.max(maxColorCount, 1));
+    while (clusters.size < maxColorCount) {
+      if (!clusters.splitWidest()) {
+        break;
+      }
     }
-    return clusterCentroids;
+    return clusters.getCentroids(componentScale);
   }
 
-  private static final class Cluster {
-    final Multiset<Color> colors;
-    double largestSpread;
-    int componentWithLargestSpread;
+  /**
+   * The clusters found so far, as parallel arrays indexed by cluster. Each cluster is the range
+   * [start, end) of entries.
+   */
+  private static final class Clusters {
+    private final double[] entries;
+    private final int[] starts;
+    private final int[] ends;
+    private final double[] pixelCounts;
+    private final double[] spreads;
+    private final int[] widestComponents;
+    private final double[] min = new double[3];
+    private final double[] max = new double[3];
+    int size;
 
-    Cluster(Multiset<Color> colors) {
-      this.colors = colors;
-      this.largestSpread = -1;
-      for (int component = 0; component < 3; ++component) {
-        double componentSpread = getComponentSpread(component);
-        if (componentSpread > largestSpread) {
-          largestSpread = componentSpread;
-          componentWithLargestSpread = component;
+    Clusters(double[] entries, int capacity) {
+      this.entries = entries;
+      this.starts = new int[capacity];
+      this.ends = new int[capacity];
+      this.pixelCounts = new double[capacity];
+      this.spreads = new double[capacity];
+      this.widestComponents = new int[capacity];
+      add(0, entries.length / ENTRY_SIZE);
+    }
+
+    /**
+     * Split the cluster with the greatest spread along its widest component, returning false if
+     * every cluster has a single color.
+     */
+    boolean splitWidest() {
+      int widest = 0;
+      for (int cluster = 1; cluster < size; ++cluster) {
+        if (spreads[cluster] > spreads[widest]) {
+          widest = cluster;
         }
       }
-    }
+      if (!(spreads[widest] > 0)) {
+        return false;
+      }
 
-    double getComponentSpread(int component) {
-      double min = Double.POSITIVE_INFINITY;
-      double max = Double.NEGATIVE_INFINITY;
-      for (Color color : colors) {
-        min = Math.min(min, color.getComponent(component));
-        max = Math.max(max, color.getComponent(component));
+      int start = starts[widest];
+      int end = ends[widest];
+      int median = partitionAtMedian(start, end, widestComponents[widest], pixelCounts[widest]);
+      // The lower half takes the widest cluster's place, and the upper half goes on the end.
+      --size;
+      if (widest != size) {
+        moveCluster(size, widest);
       }
-      return max - min;
+      add(start, median);
+      add(median, end);
+      return true;
     }
 
-    Collection<Cluster> split() {
-      List<Color> orderedColors = new ArrayList<>(colors);
-      Collections.sort(orderedColors, new ColorComponentComparator(componentWithLargestSpread));
-      int medianIndex = orderedColors.size() / 2;
-      return Arrays.asList(
-          new Cluster(new HashMultiset<>(orderedColors.subList(0, medianIndex))),
-          new Cluster(
-              new HashMultiset<>(orderedColors.subList(medianIndex, orderedColors.size()))));
+    Set<Color> getCentroids(double componentScale) {
+      Set<Color> centroids = new HashSet<>();
+      for (int cluster = 0; cluster < size; ++cluster) {
+        double[] sums = new double[3];
+        for (int i = starts[cluster]; i < ends[cluster]; ++i) {
+          double count = entries[i * ENTRY_SIZE + COUNT];
+          for (int component = 0; component < 3; ++component) {
+            sums[component] += entries[i * ENTRY_SIZE + component] * count;
+          }
+        }
+        double divisor = pixelCounts[cluster] * componentScale;
+        centroids.add(new Color(sums[0] / divisor, sums[1] / divisor, sums[2] / divisor));
+      }
+      return centroids;
     }
-  }
 
-  /**
-   * Orders clusters according to their maximum spread, in descending order.
-   */
-  static final class ClusterSpreadComparator implements Comparator<Cluster> {
-    @Override public int compare(Cluster a, Cluster b) {
-      double spreadDifference = b.largestSpread - a.largestSpread;
-      if (spreadDifference == 0) {
-        return ArbitraryComparator.INSTANCE.compare(a, b);
+    /**
+     * Add a cluster for the given range of entries, measuring its pixel count and the spread of
+     * each component in one pass.
+     */
+    private void add(int start, int end) {
+      double pixelCount = 0;
+      Arrays.fill(min, Double.POSITIVE_INFINITY);
+      Arrays.fill(max, Double.NEGATIVE_INFINITY);
+      for (int i = start; i < end; ++i) {
+        int offset = i * ENTRY_SIZE;
+        pixelCount += entries[offset + COUNT];
+        for (int component = 0; component < 3; ++component) {
+          min[component] = Math.min(min[component], entries[offset + component]);
+          max[component] = Math.max(max[component], entries[offset + component]);
+        }
+      }
+
+      int cluster = size++;
+      starts[cluster] = start;
+      ends[cluster] = end;
+      pixelCounts[cluster] = pixelCount;
+      spreads[cluster] = -1;
+      for (int component = 0; component < 3; ++component) {
+        double spread = max[component] - min[component];
+        if (spread > spreads[cluster]) {
+          spreads[cluster] = spread;
+          widestComponents[cluster] = component;
+        }
       }
-      return (int) Math.signum(spreadDifference);
     }
-  }
 
-  /**
-   * Orders colors according to the value of one particular component, in ascending order.
-   */
-  static final class ColorComponentComparator implements Comparator<Color> {
-    final int component;
+    private void moveCluster(int from, int to) {
+      starts[to] = starts[from];
+      ends[to] = ends[from];
+      pixelCounts[to] = pixelCounts[from];
+      spreads[to] = spreads[from];
+      widestComponents[to] = widestComponents[from];
+    }
+
+    /**
+     * Rearrange the given range of entries so that every entry before the returned index has a
+     * value of {@code component} no greater than any entry after it, and the entries before it
+     * hold as close to half of the range's pixels as possible. This is a quickselect, weighted by
+     * the entries' counts, with three-way partitioning since many entries share each component
+     * value. Both sides are left non-empty.
+     */
+    private int partitionAtMedian(int start, int end, int component, double pixelCount) {
+      double half = Math.floor(pixelCount / 2);
+      // Entries in [start, low) are known to be in the lower half, and hold this many pixels.
+      double lowerCount = 0;
+      int low = start, high = end;
+      while (true) {
+        double pivot = medianOfThree(getValue(low, component),
+            getValue((low + high) >>> 1, component), getValue(high - 1, component));
+
+        // Partition [low, high) into [low, less) below the pivot, [less, greater) equal to it,
+        // and [greater, high) above it.
+        int less = low, greater = high;
+        double lessCount = 0, equalCount = 0;
+        for (int i = low; i < greater; ) {
+          double value = getValue(i, component);
+          if (value < pivot) {
+            lessCount += entries[i * ENTRY_SIZE + COUNT];
+            swap(i++, less++);
+          } else if (value > pivot) {
+            swap(i, --greater);
+          } else {
+            equalCount += entries[i * ENTRY_SIZE + COUNT];
+            ++i;
+          }
+        }
+
+        if (lowerCount + lessCount >= half && less > low) {
+          high = less;
+        } else if (lowerCount + lessCount + equalCount < half && greater < high) {
+          lowerCount += lessCount + equalCount;
+          low = greater;
+        } else {
+          // The median lies among entries equal to the pivot, which may be split anywhere. Take
+          // each one into the lower half while that brings it closer to half the pixels.
+          lowerCount += lessCount;
+          int median = less;
+          while (median < greater) {
+            double count = entries[median * ENTRY_SIZE + COUNT];
+            if (lowerCount + count - half > half - lowerCount) {
+              break;
+            }
+            lowerCount += count;
+            ++median;
+          }
+          return Math.max(start + 1, Math.min(end - 1, median));
+        }
+      }
+    }
 
-    ColorComponentComparator(int component) {
-      this.component = component;
+    private double getValue(int entry, int component) {
+      return entries[entry * ENTRY_SIZE + component];
     }
 
-    @Override public int compare(Color a, Color b) {
-      double componentDifference = a.getComponent(component) - b.getComponent(component);
-      if (componentDifference == 0) {
-        return ArbitraryComparator.INSTANCE.compare(a, b);
+    private void swap(int a, int b) {
+      for (int i = 0; i < ENTRY_SIZE; ++i) {
+        double temp = entries[a * ENTRY_SIZE + i];
+        entries[a * ENTRY_SIZE + i] = entries[b * ENTRY_SIZE + i];
+        entries[b * ENTRY_SIZE + i] = temp;
       }
-      return (int) Math.signum(componentDifference);
+    }
+
+    private static double medianOfThree(double a, double b, double c) {
+      return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
     }
   }
 }
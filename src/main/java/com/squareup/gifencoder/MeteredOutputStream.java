@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.gifencoder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes written to another stream, and the time spent writing them.
+ */
+final class MeteredOutputStream extends OutputStream {
+  private final OutputStream out;
+  long byteCount;
+  long writeNanos;
+
+  MeteredOutputStream(OutputStream out) {
+    this.out = out;
+  }
+
+  @Override public void write(int b) throws IOException {
+    long start = System.nanoTime();
+    out.write(b);
+    writeNanos += System.nanoTime() - start;
+    ++byteCount;
+  }
+
+  @Override public void write(byte[] b, int off, int len) throws IOException {
+    long start = System.nanoTime();
+    out.write(b, off, len);
+    writeNanos += System.nanoTime() - start;
+    byteCount += len;
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.gifencoder;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the nearest {@link Palette} entry for recently seen 24-bit colors. Most frames reuse
+ * a small set of colors, so this usually answers without searching the palette at all.
+ *
+ * <p>The cache is direct-mapped: each color hashes to a single entry, which stores the full color
+ * alongside its answer, so a hit is always exact and a collision simply evicts the older color.
+ * Instances are not thread-safe.
+ */
+final class NearestColorCache {
+  private static final int EMPTY_KEY = -1;
+  private static final int MAX_SIZE_BITS = 24;
+
+  private final Palette palette;
+  private final int sizeBits;
+  private final int[] keys;
+  private final int[] indices;
+  private long hitCount;
+  private long missCount;
+
+  /**
+   * @param size the number of entries, which is rounded up to a power of two
+   */
+  NearestColorCache(Palette palette, int size) {
+    if (size < 1) {
+      throw new IllegalArgumentException("Cache size must be positive");
+    }
+    int sizeBits = 1;
+    while (sizeBits < MAX_SIZE_BITS && 1 << sizeBits < size) {
+      ++sizeBits;
+    }
+    this.palette = palette;
+    this.sizeBits = sizeBits;
+    this.keys = new int[1 << sizeBits];
+    this.indices = new int[1 << sizeBits];
+    Arrays.fill(keys, EMPTY_KEY);
+  }
+
+  Palette getPalette() {
+    return palette;
+  }
+
+  /**
+   * The number of entries, after rounding.
+   */
+  int size() {
+    return keys.length;
+  }
+
+  /**
+   * Returns the position in the palette of the entry nearest to the given color, packed as
+   * 0xRRGGBB.
+   */
+  int getNearestIndex(int rgb) {
+    int slot = (rgb * 0x9E3779B1) >>> (Integer.SIZE - sizeBits);
+    if (keys[slot] == rgb) {
+      ++hitCount;
+      return indices[slot];
+    }
+    ++missCount;
+    int index = palette.getNearestIndex(
+        (rgb >>> 16 & 0xFF) / 255.0, (rgb >>> 8 & 0xFF) / 255.0, (rgb & 0xFF) / 255.0);
+    keys[slot] = rgb;
+    indices[slot] = index;
+    return index;
+  }
+
+  /**
+   * Like {@link #getNearestIndex(int)}, for an arbitrary color. The color is first rounded to the
+   * nearest 24-bit color, so the answer may differ slightly from {@link Palette#getNearestIndex}.
+   */
+  int getNearestIndex(double red, double green, double blue) {
+    return getNearestIndex(toByte(red) << 16 | toByte(green) << 8 | toByte(blue));
+  }
+
+  private static int toByte(double component) {
+    return (int) Math.max(0, Math.min(255, Math.round(component * 255)));
+  }
+
+  long getHitCount() {
+    return hitCount;
+  }
+
+  long getMissCount() {
+    return missCount;
+  }
+
+  /**
+   * Add the hits and misses of another cache to this one's, such as a cache which served another
+   * band of the same image.
+   */
+  void addCounts(NearestColorCache other) {
+    hitCount += other.hitCount;
+    missCount += other.missCount;
+  }
+}
@@ -15,7 +15,12 @@
  */
 package com.squareup.gifencoder;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 
 /**
  * A trivial "ditherer" which always picks the closest color for each pixel, with no error
@@ -28,13 +33,97 @@ public final class NearestColorDitherer implements Ditherer {
   }
 
   @Override public Image dither(Image image, Set<Color> newColors) {
+    Palette palette = new Palette(newColors);
+    int[] indices = ditherToIndices(image, palette, null);
+
     int width = image.getWidth(), height = image.getHeight();
     Color[][] colors = new Color[height][width];
+    int i = 0;
     for (int y = 0; y < height; ++y) {
       for (int x = 0; x < width; ++x) {
-        colors[y][x] = image.getColor(x, y).getNearestColor(newColors);
+        colors[y][x] = palette.get(indices[i++]);
       }
     }
     return Image.fromColors(colors);
   }
+
+  /**
+   * Returns the position in {@code palette} of each pixel's nearest color, in row-major order.
+   *
+   * @param cache an optional cache of nearest colors in {@code palette}, or null
+   */
+  int[] ditherToIndices(Image image, Palette palette, NearestColorCache cache) {
+    int[] indices = new int[image.getWidth() * image.getHeight()];
+    ditherRows(image, palette, cache, 0, image.getHeight(), indices);
+    return indices;
+  }
+
+  /**
+   * Like {@link #ditherToIndices(Image, Palette, NearestColorCache)}, but handles bands of rows in
+   * parallel on the given executor, as split by {@link Parallel#splitRows}. Each band after the
+   * first gets its own cache of the same size, since caches are not thread-safe. Their hits and
+   * misses are added to {@code cache} once every band is done.
+   */
+  int[] ditherToIndices(final Image image, final Palette palette, NearestColorCache cache,
+      Executor executor, int bandSize) throws IOException {
+    final int[] bands = Parallel.splitRows(image.getWidth(), image.getHeight(), executor, bandSize);
+    if (bands.length <= 2) {
+      return ditherToIndices(image, palette, cache);
+    }
+
+    final int[] indices = new int[image.getWidth() * image.getHeight()];
+    List<Callable<Void>> tasks = new ArrayList<>(bands.length - 1);
+    List<NearestColorCache> bandCaches = new ArrayList<>();
+    for (int i = 0; i < bands.length - 1; ++i) {
+      final int band = i;
+      final NearestColorCache bandCache = cache == null || band == 0
+          ? cache
+          : new NearestColorCache(palette, cache.size());
+      if (bandCache != null && bandCache != cache) {
+        bandCaches.add(bandCache);
+      }
+      tasks.add(new Callable<Void>() {
+        @Override public Void call() {
+          ditherRows(image, palette, bandCache, bands[band], bands[band + 1], indices);
+          return null;
+        }
+      });
+    }
+    Parallel.invokeAll(executor, tasks);
+    for (NearestColorCache bandCache : bandCaches) {
+      cache.addCounts(bandCache);
+    }
+    return indices;
+  }
+
+  private static void ditherRows(Image image, Palette palette, NearestColorCache cache,
+      int startY, int endY, int[] indices) {
+    int width = image.getWidth();
+    int i = startY * width;
+    for (int y = startY; y < endY; ++y) {
+      for (int x = 0; x < width; ++x) {
+        indices[i++] = getNearestIndex(image, x, y, palette, cache);
+      }
+    }
+  }
+
+  private static int getNearestIndex(Image image, int x, int y, Palette palette,
+      NearestColorCache cache) {
+    if (image.isPacked()) {
+      int rgb = image.getRgb(x, y);
+      if (cache != null) {
+        return cache.getNearestIndex(rgb);
+      }
+      return palette.getNearestIndex(
+          (rgb >>> 16 & 0xFF) / 255.0, (rgb >>> 8 & 0xFF) / 255.0, (rgb & 0xFF) / 255.0);
+    }
+
+    Color color = image.getColor(x, y);
+    if (cache != null) {
+      return cache.getNearestIndex(
+          color.getComponent(0), color.getComponent(1), color.getComponent(2));
+    }
+    return palette.getNearestIndex(
+        color.getComponent(0), color.getComponent(1), color.getComponent(2));
+  }
 }
@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.gifencoder;
+
+/**
+ * Finds the nearest of a fixed set of colors, by Euclidean distance. Searches are created by a
+ * {@link NearestColorSearchProvider}, and must be safe to use from multiple threads.
+ */
+public interface NearestColorSearch {
+  /**
+   * Returns the position of the color nearest to the given one. If several colors are equally
+   * near, this must return the earliest.
+   */
+  int getNearestIndex(double red, double green, double blue);
+}
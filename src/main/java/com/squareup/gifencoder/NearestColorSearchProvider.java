@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.gifencoder;
+
+/**
+ * A source of faster nearest-color searches, such as the vectorized searches of the
+ * {@code gifencoder-simd} artifact. Providers are discovered with {@link java.util.ServiceLoader}
+ * when the encoder is first used; if none is found, or the first one found returns null, the
+ * encoder uses its own k-d tree.
+ */
+public interface NearestColorSearchProvider {
+  /**
+   * Create a search over the given colors, whose components are given as separate arrays. The
+   * search may keep the arrays, which will not be modified. Colors which should never be chosen
+   * have infinite components.
+   *
+   * @return a search, or null if this provider cannot be used on this platform
+   */
+  NearestColorSearch create(double[] red, double[] green, double[] blue);
+}
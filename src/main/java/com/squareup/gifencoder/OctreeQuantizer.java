@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.gifencoder;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Implements octree quantization.
+ *
+ * <p>Each level of the tree halves the color cube along red, green and blue, so a node's eight
+ * children are the octants of its cube, and the leaves at the deepest level are individual 24-bit
+ * colors. Once every color has been inserted, leaves are merged into their parents, the most finely
+ * divided and least populated first, until few enough remain. Each leaf then contributes the mean
+ * of its colors, weighted by their counts.
+ *
+ * <p>Nodes come from a fixed-size pool. If it runs low while colors are being inserted, some of the
+ * deepest nodes are merged early, so memory use is bounded however many distinct colors an image
+ * has. This is much faster than {@link MedianCutQuantizer}, at the cost of a little quality, since
+ * clusters are confined to the cubes of the tree.
+ */
+public final class OctreeQuantizer implements ColorQuantizer {
+  public static final OctreeQuantizer INSTANCE = new OctreeQuantizer();
+
+  private OctreeQuantizer() {
+  }
+
+  @Override public Set<Color> quantize(Multiset<Color> originalColors, int maxColorCount) {
+    Octree octree = new Octree();
+    double componentScale;
+    if (originalColors instanceof ColorHistogram) {
+      // Sum 8-bit components, which is exact, so that unmerged colors come out unchanged.
+      componentScale = 255;
+      for (long rgbCount : ((ColorHistogram) originalColors).getRgbCounts()) {
+        int rgb = (int) rgbCount;
+        int count = (int) (rgbCount >>> 32);
+        octree.add(rgb, (double) (rgb >>> 16 & 0xFF) * count, (double) (rgb >>> 8 & 0xFF) * count,
+            (double) (rgb & 0xFF) * count, count);
+      }
+    } else {
+      componentScale = 1;
+      for (Color color : originalColors.getDistinctElements()) {
+        int count = originalColors.count(color);
+        double red = color.getComponent(0);
+        double green = color.getComponent(1);
+        double blue = color.getComponent(2);
+        int rgb = toByte(red) << 16 | toByte(green) << 8 | toByte(blue);
+        octree.add(rgb, red * count, green * count, blue * count, count);
+      }
+    }
+    octree.reduce(maxColorCount);
+    return octree.getColors(componentScale);
+  }
+
+  /**
+   * Returns the 8-bit value of a color component, clamping components outside [0, 1], which
+   * arbitrary {@link Color}s may have.
+   */
+  private static int toByte(double component) {
+    return (int) (Math.max(0, Math.min(1, component)) * 255);
+  }
+
+  /**
+   * The tree itself. Nodes are indices into parallel arrays, with node 0 as the root. Every
+   * internal node is on a list of the nodes at its depth, which are the candidates for merging, and
+   * unused nodes are on a free list.
+   */
+  private static final class Octree {
+    /**
+     * The depth of the leaves for individual 24-bit colors, one level per bit of each component.
+     */
+    private static final int MAX_DEPTH = 8;
+
+    /**
+     * Enough nodes for thousands of leaves, in around a megabyte.
+     */
+    private static final int NODE_BITS = 14;
+    private static final int POOL_SIZE = 1 << NODE_BITS;
+    private static final int ROOT = 0;
+    private static final int NONE = -1;
+
+    /**
+     * Eight slots per node. Since the root is no one's child, 0 means there is no child.
+     */
+    private final int[] children = new int[POOL_SIZE * 8];
+    private final double[] redSums = new double[POOL_SIZE];
+    private final double[] greenSums = new double[POOL_SIZE];
+    private final double[] blueSums = new double[POOL_SIZE];
+    private final long[] pixelCounts = new long[POOL_SIZE];
+    private final boolean[] leaves = new boolean[POOL_SIZE];
+
+    /**
+     * The next node on whichever list a node is on: the internal nodes at its depth, or the free
+     * list.
+     */
+    private final int[] next = new int[POOL_SIZE];
+    private final int[] internalNodesByDepth = new int[MAX_DEPTH];
+    private int freeNodes;
+    private int freeCount;
+    private int leafCount;
+
+    Octree() {
+      Arrays.fill(internalNodesByDepth, NONE);
+      internalNodesByDepth[0] = ROOT;
+      next[ROOT] = NONE;
+      for (int node = 1; node < POOL_SIZE; ++node) {
+        next[node] = node + 1 < POOL_SIZE ? node + 1 : NONE;
+      }
+      freeNodes = 1;
+      freeCount = POOL_SIZE - 1;
+    }
+
+    /**
+     * Add the given color, packed as 0xRRGGBB, with the sums of its components over all its
+     * pixels. The sums may be in any consistent scale.
+     */
+    void add(int rgb, double redSum, double greenSum, double blueSum, int count) {
+      // Make sure the path to a new leaf can be allocated, so nothing is merged from under us.
+      while (freeCount < MAX_DEPTH) {
+        mergeNode(popDeepestInternalNode());
+      }
+
+      int node = ROOT;
+      for (int depth = 0; !leaves[node]; ++depth) {
+        int shift = MAX_DEPTH - 1 - depth;
+        int octant = (rgb >>> (16 + shift) & 1) << 2
+            | (rgb >>> (8 + shift) & 1) << 1
+            | (rgb >>> shift & 1);
+        int slot = node * 8 + octant;
+        if (children[slot] == 0) {
+          children[slot] = allocate(depth + 1);
+        }
+        node = children[slot];
+      }
+      redSums[node] += redSum;
+      greenSums[node] += greenSum;
+      blueSums[node] += blueSum;
+      pixelCounts[node] += count;
+    }
+
+    /**
+     * Merge nodes until at most {@code maxLeafCount} leaves remain. Within each depth, the nodes
+     * covering the fewest pixels are merged first, so that heavily used colors keep their
+     * precision.
+     */
+    void reduce(int maxLeafCount) {
+      for (int depth = MAX_DEPTH - 1; depth >= 0 && leafCount > maxLeafCount; --depth) {
+        // Each internal node at this depth has only leaves as children, as anything deeper has
+        // already been merged.
+        long[] nodesByPixelCount = new long[countList(internalNodesByDepth[depth])];
+        int i = 0;
+        for (int node = internalNodesByDepth[depth]; node != NONE; node = next[node]) {
+          long subtreePixelCount = 0;
+          for (int slot = node * 8; slot < node * 8 + 8; ++slot) {
+            if (children[slot] != 0) {
+              subtreePixelCount += pixelCounts[children[slot]];
+            }
+          }
+          nodesByPixelCount[i++] = subtreePixelCount << NODE_BITS | node;
+        }
+        Arrays.sort(nodesByPixelCount);
+
+        internalNodesByDepth[depth] = NONE;
+        for (i = 0; i < nodesByPixelCount.length && leafCount > maxLeafCount; ++i) {
+          mergeNode((int) (nodesByPixelCount[i] & (POOL_SIZE - 1)));
+        }
+      }
+    }
+
+    /**
+     * Returns the mean color of each leaf.
+     *
+     * @param scale the value which component sums were scaled to for a full component
+     */
+    Set<Color> getColors(double scale) {
+      Set<Color> colors = new HashSet<>();
+      for (int node = 0; node < POOL_SIZE; ++node) {
+        if (leaves[node] && pixelCounts[node] > 0) {
+          double count = pixelCounts[node];
+          colors.add(new Color(redSums[node] / count / scale, greenSums[node] / count / scale,
+              blueSums[node] / count / scale));
+        }
+      }
+      return colors;
+    }
+
+    private int countList(int head) {
+      int count = 0;
+      for (int node = head; node != NONE; node = next[node]) {
+        ++count;
+      }
+      return count;
+    }
+
+    private int allocate(int depth) {
+      int node = freeNodes;
+      freeNodes = next[node];
+      --freeCount;
+
+      redSums[node] = 0;
+      greenSums[node] = 0;
+      blueSums[node] = 0;
+      pixelCounts[node] = 0;
+      if (depth == MAX_DEPTH) {
+        leaves[node] = true;
+        ++leafCount;
+      } else {
+        next[node] = internalNodesByDepth[depth];
+        internalNodesByDepth[depth] = node;
+      }
+      return node;
+    }
+
+    /**
+     * Remove an internal node from the deepest non-empty list, whose children are all leaves.
+     */
+    private int popDeepestInternalNode() {
+      int depth = MAX_DEPTH - 1;
+      while (internalNodesByDepth[depth] == NONE) {
+        --depth;
+      }
+      int node = internalNodesByDepth[depth];
+      internalNodesByDepth[depth] = next[node];
+      return node;
+    }
+
+    /**
+     * Fold the children of an internal node, which must all be leaves, into the node, making it a
+     * leaf. The node must already have been removed from its list.
+     */
+    private void mergeNode(int node) {
+      int childCount = 0;
+      for (int slot = node * 8; slot < node * 8 + 8; ++slot) {
+        int child = children[slot];
+        if (child != 0) {
+          redSums[node] += redSums[child];
+          greenSums[node] += greenSums[child];
+          blueSums[node] += blueSums[child];
+          pixelCounts[node] += pixelCounts[child];
+          children[slot] = 0;
+          leaves[child] = false;
+          next[child] = freeNodes;
+          freeNodes = child;
+          ++freeCount;
+          ++childCount;
+        }
+      }
+      leaves[node] = true;
+      leafCount += 1 - childCount;
+    }
+  }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.gifencoder;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * A fixed set of colors, indexed for fast nearest-neighbor queries. This answers the same question
+ * as {@link Color#getNearestColor}, but rather than scanning every color it searches a k-d tree, so
+ * a typical query against a 256-color palette only measures the distance to a handful of colors.
+ *
+ * <p>The tree is stored implicitly: the colors of any subtree occupy a contiguous range of node
+ * positions, with the splitting color at the middle of that range. Subtrees of a few colors are
+ * left unsplit and scanned linearly, which is faster than descending through them. Instances are
+ * immutable and may be queried from multiple threads.
+ *
+ * <p>If a {@link NearestColorSearchProvider} is installed, its searches are used instead of the
+ * tree.
+ */
+final class Palette {
+  private static final NearestColorSearchProvider SEARCH_PROVIDER = loadSearchProvider();
+
+  /**
+   * The most nodes a subtree may hold without being split.
+   */
+  private static final int LEAF_SIZE = 8;
+
+  private final Color[] colors;
+
+  /**
+   * A search from {@link #SEARCH_PROVIDER}, or null to search the tree.
+   */
+  private final NearestColorSearch search;
+
+  /**
+   * The (r, g, b) components of each node, in tree order.
+   */
+  private final double[] nodeComponents;
+
+  /**
+   * The position in {@link #colors} of each node's color.
+   */
+  private final int[] nodeIndices;
+
+  /**
+   * The component (0, 1 or 2) which each node splits its subtree on.
+   */
+  private final byte[] nodeAxes;
+
+  Palette(Collection<Color> colors) {
+    if (colors.isEmpty()) {
+      throw new IllegalArgumentException("A palette needs at least one color");
+    }
+    this.colors = colors.toArray(new Color[colors.size()]);
+    this.search = createSearch(this.colors);
+
+    int size = this.colors.length;
+    nodeComponents = new double[size * 3];
+    nodeIndices = new int[size];
+    nodeAxes = new byte[size];
+    for (int i = 0; i < size; ++i) {
+      nodeIndices[i] = i;
+      for (int c = 0; c < 3; ++c) {
+        nodeComponents[i * 3 + c] = this.colors[i].getComponent(c);
+      }
+    }
+    if (search == null) {
+      build(0, size);
+    }
+  }
+
+  int size() {
+    return colors.length;
+  }
+
+  /**
+   * Returns the color at the given position, in the iteration order of the original collection.
+   */
+  Color get(int index) {
+    return colors[index];
+  }
+
+  Color getNearestColor(Color color) {
+    return colors[getNearestIndex(color.getComponent(0), color.getComponent(1),
+        color.getComponent(2))];
+  }
+
+  /**
+   * Returns the position of the color nearest to the given one, by Euclidean distance. Ties go to
+   * the earliest position, just as they would in a linear scan.
+   */
+  int getNearestIndex(double red, double green, double blue) {
+    if (search != null) {
+      return search.getNearestIndex(red, green, blue);
+    }
+    int best = search(0, colors.length, red, green, blue, -1, Double.POSITIVE_INFINITY);
+    // Nothing is found only if every distance is NaN or infinite, in which case the earliest
+    // color is as good as any.
+    return best != -1 ? nodeIndices[best] : 0;
+  }
+
+  private static NearestColorSearchProvider loadSearchProvider() {
+    try {
+      Iterator<NearestColorSearchProvider> providers =
+          ServiceLoader.load(NearestColorSearchProvider.class).iterator();
+      return providers.hasNext() ? providers.next() : null;
+    } catch (ServiceConfigurationError e) {
+      return null;
+    }
+  }
+
+  private static NearestColorSearch createSearch(Color[] colors) {
+    if (SEARCH_PROVIDER == null) {
+      return null;
+    }
+    double[][] components = new double[3][colors.length];
+    for (int i = 0; i < colors.length; ++i) {
+      for (int c = 0; c < 3; ++c) {
+        double component = colors[i].getComponent(c);
+        // Providers need not handle NaN, but any search will pass over an infinitely distant color.
+        components[c][i] = Double.isNaN(component) ? Double.POSITIVE_INFINITY : component;
+      }
+    }
+    return SEARCH_PROVIDER.create(components[0], components[1], components[2]);
+  }
+
+  /**
+   * Search the subtree occupying nodes [start, end), returning whichever is nearer of the best
+   * node found there and {@code best}, which is -1 if no node has been seen yet. The squared
+   * distance to {@code best} is passed along, so each node visited costs a single distance
+   * computation.
+   */
+  private int search(int start, int end, double red, double green, double blue, int best,
+      double bestDistance) {
+    if (end - start <= LEAF_SIZE) {
+      for (int node = start; node < end; ++node) {
+        double distance = distanceSquared(node, red, green, blue);
+        if (isNearer(node, distance, best, bestDistance)) {
+          best = node;
+          bestDistance = distance;
+        }
+      }
+      return best;
+    }
+
+    int node = (start + end) >>> 1;
+    double distance = distanceSquared(node, red, green, blue);
+    if (isNearer(node, distance, best, bestDistance)) {
+      best = node;
+      bestDistance = distance;
+    }
+
+    int axis = nodeAxes[node];
+    double target = axis == 0 ? red : axis == 1 ? green : blue;
+    double planeDistance = target - nodeComponents[node * 3 + axis];
+    int nearBest = planeDistance < 0
+        ? search(start, node, red, green, blue, best, bestDistance)
+        : search(node + 1, end, red, green, blue, best, bestDistance);
+    if (nearBest != best) {
+      best = nearBest;
+      bestDistance = distanceSquared(best, red, green, blue);
+    }
+    // The far side of the splitting plane can only hold a nearer color if the plane itself is
+    // nearer. This is written so that NaN distances never prune anything.
+    if (!(planeDistance * planeDistance > bestDistance)) {
+      best = planeDistance < 0
+          ? search(node + 1, end, red, green, blue, best, bestDistance)
+          : search(start, node, red, green, blue, best, bestDistance);
+    }
+    return best;
+  }
+
+  /**
+   * Returns true if {@code node}, at the given squared distance, is nearer than {@code best}. A
+   * NaN distance, from a degenerate color such as the centroid of an empty cluster, never is.
+   */
+  private boolean isNearer(int node, double distance, int best, double bestDistance) {
+    return distance < bestDistance
+        || distance == bestDistance && best != -1 && nodeIndices[node] < nodeIndices[best];
+  }
+
+  private double distanceSquared(int node, double red, double green, double blue) {
+    double dr = red - nodeComponents[node * 3];
+    double dg = green - nodeComponents[node * 3 + 1];
+    double db = blue - nodeComponents[node * 3 + 2];
+    return dr * dr + dg * dg + db * db;
+  }
+
+  /**
+   * Arrange nodes [start, end) into a subtree, splitting on the component with the widest range.
+   */
+  private void build(int start, int end) {
+    if (end - start <= LEAF_SIZE) {
+      return;
+    }
+    int axis = 0;
+    double widestRange = -1;
+    for (int c = 0; c < 3; ++c) {
+      double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+      for (int node = start; node < end; ++node) {
+        double value = nodeComponents[node * 3 + c];
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+      }
+      if (max - min > widestRange) {
+        widestRange = max - min;
+        axis = c;
+      }
+    }
+
+    int middle = (start + end) >>> 1;
+    select(start, end, middle, axis);
+    nodeAxes[middle] = (byte) axis;
+    build(start, middle);
+    build(middle + 1, end);
+  }
+
+  /**
+   * Partially sort nodes [start, end) on the given component, so that the node at {@code k} is in
+   * its sorted position, with no greater values before it and no smaller values after it.
+   */
+  private void select(int start, int end, int k, int axis) {
+    int low = start, high = end - 1;
+    while (low < high) {
+      double pivot = nodeComponents[((low + high) >>> 1) * 3 + axis];
+      int i = low, j = high;
+      while (i <= j) {
+        while (nodeComponents[i * 3 + axis] < pivot) {
+          ++i;
+        }
+        while (nodeComponents[j * 3 + axis] > pivot) {
+          --j;
+        }
+        if (i <= j) {
+          swap(i++, j--);
+        }
+      }
+      if (k <= j) {
+        high = j;
+      } else if (k >= i) {
+        low = i;
+      } else {
+        return;
+      }
+    }
+  }
+
+  private void swap(int a, int b) {
+    int index = nodeIndices[a];
+    nodeIndices[a] = nodeIndices[b];
+    nodeIndices[b] = index;
+    for (int c = 0; c < 3; ++c) {
+      double component = nodeComponents[a * 3 + c];
+      nodeComponents[a * 3 + c] = nodeComponents[b * 3 + c];
+      nodeComponents[b * 3 + c] = component;
+    }
+  }
+}
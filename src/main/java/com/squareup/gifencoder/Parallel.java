@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.gifencoder;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+final class Parallel {
+  private Parallel() {
+  }
+
+  /**
+   * Run the given tasks on the executor and return their results, in order.
+   *
+   * <p>The calling thread also runs any tasks which the executor hasn't started yet. This means a
+   * task which is itself running on the executor can safely fork more work onto it, even if every
+   * thread in the pool is busy.
+   */
+  static <T> List<T> invokeAll(Executor executor, List<? extends Callable<T>> tasks)
+      throws IOException {
+    List<FutureTask<T>> futures = new ArrayList<>(tasks.size());
+    for (Callable<T> task : tasks) {
+      futures.add(new FutureTask<>(task));
+    }
+    // Leave the first task for this thread, since it would otherwise sit idle.
+    for (int i = 1; i < futures.size(); ++i) {
+      try {
+        executor.execute(futures.get(i));
+      } catch (RejectedExecutionException e) {
+        // This thread will run it below.
+      }
+    }
+
+    List<T> results = new ArrayList<>(futures.size());
+    for (FutureTask<T> future : futures) {
+      // This does nothing if the task has already been started by the executor.
+      future.run();
+    }
+    for (FutureTask<T> future : futures) {
+      results.add(await(future));
+    }
+    return results;
+  }
+
+  /**
+   * Split the rows of an image into bands of at least {@code bandSize} pixels each, to be
+   * processed in parallel on {@code executor}. Band {@code i} covers rows {@code bands[i]} up to
+   * {@code bands[i + 1]}. A single band covering every row is returned if there is no executor,
+   * {@code bandSize} is 0, or the image is too small to split.
+   */
+  static int[] splitRows(int width, int height, Executor executor, int bandSize) {
+    int bandCount = 1;
+    if (executor != null && bandSize > 0) {
+      bandCount = (int) Math.max(1, Math.min((long) width * height / bandSize, height));
+    }
+    int[] bands = new int[bandCount + 1];
+    for (int i = 0; i <= bandCount; ++i) {
+      bands[i] = (int) ((long) height * i / bandCount);
+    }
+    return bands;
+  }
+
+  /**
+   * Wait for the given future, rethrowing any exception thrown by its task.
+   */
+  static <T> T await(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a task");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new IOException(cause);
+    }
+  }
+}
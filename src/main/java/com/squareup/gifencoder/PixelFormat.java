@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.gifencoder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The byte layout of a single pixel in a raw frame buffer. Alpha channels are ignored.
+ */
+public enum PixelFormat {
+  /**
+   * Three bytes per pixel: red, green, blue.
+   */
+  RGB_888(3) {
+    @Override int getRgb(ByteBuffer buffer, int index) {
+      return (buffer.get(index) & 0xFF) << 16
+          | (buffer.get(index + 1) & 0xFF) << 8
+          | buffer.get(index + 2) & 0xFF;
+    }
+  },
+
+  /**
+   * Four bytes per pixel: red, green, blue, alpha.
+   */
+  RGBA_8888(4) {
+    @Override int getRgb(ByteBuffer buffer, int index) {
+      return RGB_888.getRgb(buffer, index);
+    }
+  },
+
+  /**
+   * Four bytes per pixel: blue, green, red, alpha.
+   */
+  BGRA_8888(4) {
+    @Override int getRgb(ByteBuffer buffer, int index) {
+      return (buffer.get(index + 2) & 0xFF) << 16
+          | (buffer.get(index + 1) & 0xFF) << 8
+          | buffer.get(index) & 0xFF;
+    }
+  };
+
+  final int bytesPerPixel;
+
+  PixelFormat(int bytesPerPixel) {
+    this.bytesPerPixel = bytesPerPixel;
+  }
+
+  /**
+   * Read the pixel starting at the given absolute index, packed as 0xRRGGBB.
+   */
+  abstract int getRgb(ByteBuffer buffer, int index);
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.gifencoder;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Implements Xiaolin Wu's color quantization, from <i>Graphics Gems II</i>.
+ *
+ * <p>Colors are first counted in a 32x32x32 grid, along with the sums of their components and of
+ * their squared components. These are then made cumulative, so that the count, sums and variance
+ * of any box of the grid take a constant number of lookups. Starting from a box around the whole
+ * grid, the box with the greatest variance is repeatedly cut in two, at whichever plane most
+ * reduces the total variance, until there are as many boxes as colors wanted. Each box contributes
+ * the mean of its colors.
+ *
+ * <p>This usually gives better results than {@link MedianCutQuantizer}, since it minimizes variance
+ * rather than splitting at medians, and after counting colors it takes time independent of the
+ * size of the image.
+ */
+public final class WuQuantizer implements ColorQuantizer {
+  public static final WuQuantizer INSTANCE = new WuQuantizer();
+
+  /**
+   * Components are reduced to this many bits to place colors in the grid.
+   */
+  private static final int GRID_BITS = 5;
+
+  /**
+   * The grid has an extra layer of zeros at the low end of each axis, so that cumulative sums
+   * need no special case at the edges.
+   */
+  private static final int SIDE = (1 << GRID_BITS) + 1;
+
+  private static final int RED = 0;
+  private static final int GREEN = 1;
+  private static final int BLUE = 2;
+
+  private WuQuantizer() {
+  }
+
+  @Override public Set<Color> quantize(Multiset<Color> originalColors, int maxColorCount) {
+    Set<Color> distinctColors = originalColors.getDistinctElements();
+    if (distinctColors.size() <= maxColorCount) {
+      // Every color fits. Boxes are no finer than a grid cell, so splitting would still merge
+      // colors which share a cell.
+      return new HashSet<>(distinctColors);
+    }
+
+    Moments moments = new Moments();
+    double componentScale;
+    if (originalColors instanceof ColorHistogram) {
+      // Sum 8-bit components, which is exact, so that colors alone in their box come out unchanged.
+      componentScale = 255;
+      for (long rgbCount : ((ColorHistogram) originalColors).getRgbCounts()) {
+        int rgb = (int) rgbCount;
+        moments.add(rgb >>> 16 & 0xFF, rgb >>> 8 & 0xFF, rgb & 0xFF, rgb >>> 16 & 0xFF,
+            rgb >>> 8 & 0xFF, rgb & 0xFF, (int) (rgbCount >>> 32));
+      }
+    } else {
+      componentScale = 1;
+      for (Color color : originalColors.getDistinctElements()) {
+        double red = color.getComponent(0);
+        double green = color.getComponent(1);
+        double blue = color.getComponent(2);
+        moments.add(toByte(red), toByte(green), toByte(blue), red, green, blue,
+            originalColors.count(color));
+      }
+    }
+    moments.accumulate();
+
+    Set<Color> colors = new HashSet<>();
+    for (Box box : moments.split(maxColorCount)) {
+      double weight = moments.volume(box, moments.weights);
+      if (weight > 0) {
+        double divisor = weight * componentScale;
+        colors.add(new Color(moments.volume(box, moments.redSums) / divisor,
+            moments.volume(box, moments.greenSums) / divisor,
+            moments.volume(box, moments.blueSums) / divisor));
+      }
+    }
+    return colors;
+  }
+
+  /**
+   * Returns the 8-bit value of a color component, clamping components outside [0, 1], which
+   * arbitrary {@link Color}s may have.
+   */
+  private static int toByte(double component) {
+    return (int) (Math.max(0, Math.min(1, component)) * 255);
+  }
+
+  private static int index(int red, int green, int blue) {
+    return (red * SIDE + green) * SIDE + blue;
+  }
+
+  /**
+   * The moments of the colors in each cell of the grid, or once accumulated, of the colors in the
+   * box from the origin to each cell.
+   */
+  private static final class Moments {
+    final double[] weights = new double[SIDE * SIDE * SIDE];
+    final double[] redSums = new double[SIDE * SIDE * SIDE];
+    final double[] greenSums = new double[SIDE * SIDE * SIDE];
+    final double[] blueSums = new double[SIDE * SIDE * SIDE];
+    final double[] squareSums = new double[SIDE * SIDE * SIDE];
+
+    /**
+     * Add a color with the given 8-bit components, which decide its cell, and the given
+     * components in whichever scale the sums use.
+     */
+    void add(int red8, int green8, int blue8, double red, double green, double blue, int count) {
+      int index = index((red8 >>> (8 - GRID_BITS)) + 1, (green8 >>> (8 - GRID_BITS)) + 1,
+          (blue8 >>> (8 - GRID_BITS)) + 1);
+      weights[index] += count;
+      redSums[index] += red * count;
+      greenSums[index] += green * count;
+      blueSums[index] += blue * count;
+      squareSums[index] += (red * red + green * green + blue * blue) * count;
+    }
+
+    /**
+     * Replace each cell's moments with the total over the box from the origin to that cell.
+     */
+    void accumulate() {
+      for (double[] moment : new double[][] {weights, redSums, greenSums, blueSums, squareSums}) {
+        for (int r = 1; r < SIDE; ++r) {
+          double[] area = new double[SIDE];
+          for (int g = 1; g < SIDE; ++g) {
+            double line = 0;
+            for (int b = 1; b < SIDE; ++b) {
+              int index = index(r, g, b);
+              line += moment[index];
+              area[b] += line;
+              moment[index] = moment[index(r - 1, g, b)] + area[b];
+            }
+          }
+        }
+      }
+    }
+
+    /**
+     * Cut the grid into at most {@code maxBoxCount} boxes, always cutting the box with the
+     * greatest variance, until there are enough boxes or none can be cut any further.
+     */
+    List<Box> split(int maxBoxCount) {
+      List<Box> boxes = new ArrayList<>();
+      boxes.add(new Box(0, SIDE - 1, 0, SIDE - 1, 0, SIDE - 1));
+      double[] variances = new double[Math.max(maxBoxCount, 1)];
+      int next = 0;
+      while (boxes.size() < maxBoxCount) {
+        Box box = boxes.get(next);
+        Box cut = cut(box);
+        if (cut != null) {
+          variances[next] = box.cellCount() > 1 ? variance(box) : 0;
+          variances[boxes.size()] = cut.cellCount() > 1 ? variance(cut) : 0;
+          boxes.add(cut);
+        } else {
+          variances[next] = 0;
+        }
+
+        next = 0;
+        for (int i = 1; i < boxes.size(); ++i) {
+          if (variances[i] > variances[next]) {
+            next = i;
+          }
+        }
+        if (variances[next] <= 0) {
+          break;
+        }
+      }
+      return boxes;
+    }
+
+    /**
+     * Cut the given box in two at the plane which leaves the least variance, shrinking it to one
+     * side and returning the other, or return null if it cannot be cut.
+     */
+    private Box cut(Box box) {
+      double wholeRed = volume(box, redSums);
+      double wholeGreen = volume(box, greenSums);
+      double wholeBlue = volume(box, blueSums);
+      double wholeWeight = volume(box, weights);
+
+      double[] redCut = maximize(box, RED, box.red0 + 1, box.red1, wholeRed, wholeGreen,
+          wholeBlue, wholeWeight);
+      double[] greenCut = maximize(box, GREEN, box.green0 + 1, box.green1, wholeRed,
+          wholeGreen, wholeBlue, wholeWeight);
+      double[] blueCut = maximize(box, BLUE, box.blue0 + 1, box.blue1, wholeRed, wholeGreen,
+          wholeBlue, wholeWeight);
+
+      Box other = new Box(box.red0, box.red1, box.green0, box.green1, box.blue0, box.blue1);
+      if (redCut[0] >= greenCut[0] && redCut[0] >= blueCut[0]) {
+        if (redCut[1] < 0) {
+          // No plane separates any colors.
+          return null;
+        }
+        box.red1 = other.red0 = (int) redCut[1];
+      } else if (greenCut[0] >= redCut[0] && greenCut[0] >= blueCut[0]) {
+        box.green1 = other.green0 = (int) greenCut[1];
+      } else {
+        box.blue1 = other.blue0 = (int) blueCut[1];
+      }
+      return other;
+    }
+
+    /**
+     * Find the plane along the given axis, between {@code first} and {@code last}, which best
+     * separates the colors of the box, returning how well it does so followed by its position, or
+     * -1 if no plane has colors on both sides.
+     */
+    private double[] maximize(Box box, int axis, int first, int last, double wholeRed,
+        double wholeGreen, double wholeBlue, double wholeWeight) {
+      double baseRed = bottom(box, axis, redSums);
+      double baseGreen = bottom(box, axis, greenSums);
+      double baseBlue = bottom(box, axis, blueSums);
+      double baseWeight = bottom(box, axis, weights);
+
+      double max = 0;
+      int cut = -1;
+      for (int i = first; i < last; ++i) {
+        double halfRed = baseRed + top(box, axis, i, redSums);
+        double halfGreen = baseGreen + top(box, axis, i, greenSums);
+        double halfBlue = baseBlue + top(box, axis, i, blueSums);
+        double halfWeight = baseWeight + top(box, axis, i, weights);
+        if (halfWeight == 0) {
+          continue;
+        }
+        double score =
+            (halfRed * halfRed + halfGreen * halfGreen + halfBlue * halfBlue) / halfWeight;
+
+        halfRed = wholeRed - halfRed;
+        halfGreen = wholeGreen - halfGreen;
+        halfBlue = wholeBlue - halfBlue;
+        halfWeight = wholeWeight - halfWeight;
+        if (halfWeight == 0) {
+          continue;
+        }
+        score += (halfRed * halfRed + halfGreen * halfGreen + halfBlue * halfBlue) / halfWeight;
+
+        if (score > max) {
+          max = score;
+          cut = i;
+        }
+      }
+      return new double[] {max, cut};
+    }
+
+    /**
+     * The weighted variance of the colors in the given box: the sum of their squared distances
+     * from its mean.
+     */
+    private double variance(Box box) {
+      double red = volume(box, redSums);
+      double green = volume(box, greenSums);
+      double blue = volume(box, blueSums);
+      return volume(box, squareSums)
+          - (red * red + green * green + blue * blue) / volume(box, weights);
+    }
+
+    /**
+     * The total of the given moment over the given box.
+     */
+    double volume(Box box, double[] moment) {
+      return moment[index(box.red1, box.green1, box.blue1)]
+          - moment[index(box.red1, box.green1, box.blue0)]
+          - moment[index(box.red1, box.green0, box.blue1)]
+          + moment[index(box.red1, box.green0, box.blue0)]
+          - moment[index(box.red0, box.green1, box.blue1)]
+          + moment[index(box.red0, box.green1, box.blue0)]
+          + moment[index(box.red0, box.green0, box.blue1)]
+          - moment[index(box.red0, box.green0, box.blue0)];
+    }
+
+    /**
+     * The part of {@link #volume} which depends only on the lower bound along the given axis,
+     * negated. Adding {@link #top} for a plane gives the total below that plane.
+     */
+    private static double bottom(Box box, int axis, double[] moment) {
+      switch (axis) {
+        case RED:
+          return -moment[index(box.red0, box.green1, box.blue1)]
+              + moment[index(box.red0, box.green1, box.blue0)]
+              + moment[index(box.red0, box.green0, box.blue1)]
+              - moment[index(box.red0, box.green0, box.blue0)];
+        case GREEN:
+          return -moment[index(box.red1, box.green0, box.blue1)]
+              + moment[index(box.red1, box.green0, box.blue0)]
+              + moment[index(box.red0, box.green0, box.blue1)]
+              - moment[index(box.red0, box.green0, box.blue0)];
+        case BLUE:
+          return -moment[index(box.red1, box.green1, box.blue0)]
+              + moment[index(box.red1, box.green0, box.blue0)]
+              + moment[index(box.red0, box.green1, box.blue0)]
+              - moment[index(box.red0, box.green0, box.blue0)];
+        default:
+          throw new AssertionError(axis);
+      }
+    }
+
+    /**
+     * The part of {@link #volume} which depends on the upper bound along the given axis, with
+     * that bound moved to {@code position}.
+     */
+    private static double top(Box box, int axis, int position, double[] moment) {
+      switch (axis) {
+        case RED:
+          return moment[index(position, box.green1, box.blue1)]
+              - moment[index(position, box.green1, box.blue0)]
+              - moment[index(position, box.green0, box.blue1)]
+              + moment[index(position, box.green0, box.blue0)];
+        case GREEN:
+          return moment[index(box.red1, position, box.blue1)]
+              - moment[index(box.red1, position, box.blue0)]
+              - moment[index(box.red0, position, box.blue1)]
+              + moment[index(box.red0, position, box.blue0)];
+        case BLUE:
+          return moment[index(box.red1, box.green1, position)]
+              - moment[index(box.red1, box.green0, position)]
+              - moment[index(box.red0, box.green1, position)]
+              + moment[index(box.red0, box.green0, position)];
+        default:
+          throw new AssertionError(axis);
+      }
+    }
+  }
+
+  /**
+   * A box of grid cells. Lower bounds are exclusive and upper bounds inclusive, matching the
+   * cumulative moments.
+   */
+  private static final class Box {
+    int red0, red1;
+    int green0, green1;
+    int blue0, blue1;
+
+    Box(int red0, int red1, int green0, int green1, int blue0, int blue1) {
+      this.red0 = red0;
+      this.red1 = red1;
+      this.green0 = green0;
+      this.green1 = green1;
+      this.blue0 = blue0;
+      this.blue1 = blue1;
+    }
+
+    int cellCount() {
+      return (red1 - red0) * (green1 - green0) * (blue1 - blue0);
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package com.squareup.gifencoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BitWriterTest {
+  @Test public void testWrite_leastSignificantBitFirst() {
+    BitWriter writer = new BitWriter();
+    writer.write(0x1, 3);
+    writer.write(0x1F, 5);
+    writer.write(0xABC, 12);
+    writer.flush();
+    assertThat(writer.toByteArray()).isEqualTo(new byte[] {(byte) 0xF9, (byte) 0xBC, 0x0A});
+  }
+
+  @Test public void testFlush_partialByteOnlyOnce() {
+    BitWriter writer = new BitWriter();
+    writer.write(0x3, 2);
+    writer.flush();
+    writer.flush();
+    assertThat(writer.toByteArray()).isEqualTo(new byte[] {0x3});
+  }
+
+  @Test public void testWriteSubBlocks() throws IOException {
+    BitWriter writer = new BitWriter();
+    for (int i = 0; i < 300; ++i) {
+      writer.write(i & 0xFF, 8);
+    }
+
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    writer.writeSubBlocks(outputStream);
+    byte[] bytes = outputStream.toByteArray();
+
+    assertThat(bytes).hasSize(302);
+    assertThat(bytes[0] & 0xFF).isEqualTo(255);
+    assertThat(bytes[256] & 0xFF).isEqualTo(45);
+    assertThat(bytes[257] & 0xFF).isEqualTo(255);
+    assertThat(bytes[301] & 0xFF).isEqualTo(43);
+  }
+
+  @Test public void testWriteCompleteSubBlocks_keepsRemainder() throws IOException {
+    BitWriter writer = new BitWriter();
+    for (int i = 0; i < 300; ++i) {
+      writer.write(i & 0xFF, 8);
+    }
+
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    writer.writeCompleteSubBlocks(outputStream);
+    assertThat(outputStream.size()).isEqualTo(256);
+    assertThat(writer.size()).isEqualTo(45);
+
+    writer.writeSubBlocks(outputStream);
+    assertThat(outputStream.size()).isEqualTo(302);
+    assertThat(writer.size()).isEqualTo(0);
+  }
+}
@@ -0,0 +1,81 @@
+package com.squareup.gifencoder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ColorHistogramTest {
+  @Test public void testAddAndRemove() {
+    ColorHistogram histogram = new ColorHistogram();
+
+    histogram.add(Color.RED);
+    assertThat(histogram.count(Color.RED)).isEqualTo(1);
+    histogram.add(Color.RED, 3);
+    assertThat(histogram.count(Color.RED)).isEqualTo(4);
+    assertThat(histogram.countRgb(0xFF0000)).isEqualTo(4);
+
+    histogram.remove(Color.RED);
+    assertThat(histogram.count(Color.RED)).isEqualTo(3);
+    assertThat(histogram.remove(Color.RED, 5)).isEqualTo(3);
+    assertThat(histogram.count(Color.RED)).isEqualTo(0);
+    assertThat(histogram).isEmpty();
+  }
+
+  @Test public void testCount_inexactColor() {
+    ColorHistogram histogram = new ColorHistogram();
+    histogram.addRgb(0, 2);
+    assertThat(histogram.count(new Color(0.001, 0, 0))).isEqualTo(0);
+    assertThat(histogram.count("black")).isEqualTo(0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testAdd_inexactColor() {
+    new ColorHistogram().add(new Color(0.5, 0, 0));
+  }
+
+  @Test public void testIteration() {
+    ColorHistogram histogram = new ColorHistogram();
+    histogram.addRgb(0x0000FF, 2);
+    histogram.addRgb(0x00FF00, 1);
+
+    assertThat(histogram).hasSize(3).containsOnly(Color.BLUE, Color.GREEN);
+    assertThat(histogram.getDistinctElements()).hasSize(2).containsOnly(Color.BLUE, Color.GREEN);
+  }
+
+  @Test public void testMatchesHashMultiset() {
+    // Enough colors to force several resizes, and enough removals to exercise deletion.
+    Random random = new Random(0);
+    ColorHistogram histogram = new ColorHistogram();
+    Multiset<Color> expected = new HashMultiset<>();
+    List<Integer> added = new ArrayList<>();
+    for (int i = 0; i < 20_000; ++i) {
+      int rgb = random.nextInt(1 << 13) * 2039 & 0xFFFFFF;
+      int n = random.nextInt(3) + 1;
+      histogram.addRgb(rgb, n);
+      expected.add(Color.fromRgbInt(rgb), n);
+      added.add(rgb);
+    }
+    for (int i = 0; i < 10_000; ++i) {
+      Color color = Color.fromRgbInt(added.get(random.nextInt(added.size())));
+      int n = random.nextInt(4) + 1;
+      assertThat(histogram.remove(color, n)).isEqualTo(expected.remove(color, n));
+    }
+
+    assertThat(histogram.size()).isEqualTo(expected.size());
+    assertThat(histogram.getDistinctElements()).isEqualTo(expected.getDistinctElements());
+    for (Color color : expected.getDistinctElements()) {
+      assertThat(histogram.count(color)).isEqualTo(expected.count(color));
+    }
+  }
+
+  @Test public void testImageGetColors() {
+    Image image = Image.fromRgb(new int[] {0xFF0000, 0xFF0000, 0x00FF00, 0xFF0000}, 2);
+    Multiset<Color> colors = image.getColors();
+    assertThat(colors.count(Color.RED)).isEqualTo(3);
+    assertThat(colors.count(Color.GREEN)).isEqualTo(1);
+    assertThat(colors.getDistinctElements()).hasSize(2);
+  }
+}
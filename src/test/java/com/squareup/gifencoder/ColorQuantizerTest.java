@@ -0,0 +1,74 @@
+package com.squareup.gifencoder;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Properties which every {@link ColorQuantizer} should have. Quantizers which ignore the original
+ * colors, like {@link UniformQuantizer}, skip those which depend on them.
+ */
+@RunWith(Parameterized.class)
+public class ColorQuantizerTest {
+  @Parameters(name = "{0}")
+  public static List<Object[]> parameters() {
+    return Arrays.asList(new Object[][] {
+        {"wu", WuQuantizer.INSTANCE, true},
+        {"median-cut", MedianCutQuantizer.INSTANCE, true},
+        {"octree", OctreeQuantizer.INSTANCE, true},
+        {"k-means", KMeansQuantizer.INSTANCE, true},
+        {"k-means-mini-batch", KMeansQuantizer.INSTANCE.withSampleSize(256), true},
+        {"uniform", UniformQuantizer.INSTANCE, false},
+    });
+  }
+
+  @Parameter(0) public String name;
+  @Parameter(1) public ColorQuantizer quantizer;
+  @Parameter(2) public boolean adaptive;
+
+  @Test public void testQuantize_fewColors() {
+    assumeTrue(adaptive);
+    ColorHistogram histogram = new ColorHistogram();
+    histogram.addRgb(0x123456, 10);
+    histogram.addRgb(0xABCDEF, 1);
+    histogram.addRgb(0x123457, 3);
+    assertThat(quantizer.quantize(histogram, 256)).containsOnly(
+        Color.fromRgbInt(0x123456), Color.fromRgbInt(0xABCDEF), Color.fromRgbInt(0x123457));
+  }
+
+  @Test public void testQuantize_weightsByCount() {
+    assumeTrue(adaptive);
+    ColorHistogram histogram = new ColorHistogram();
+    histogram.addRgb(0x000000, 3);
+    histogram.addRgb(0x000004, 1);
+    assertThat(quantizer.quantize(histogram, 1)).containsOnly(new Color(0, 0, 1 / 255.0));
+  }
+
+  @Test public void testQuantize_manyColors() {
+    Random random = new Random(0);
+    ColorHistogram histogram = new ColorHistogram();
+    for (int i = 0; i < 20_000; ++i) {
+      histogram.addRgb(random.nextInt(1 << 24), 1 + random.nextInt(3));
+    }
+    Set<Color> colors = quantizer.quantize(histogram, 64);
+    assertThat(colors.size()).isLessThanOrEqualTo(64);
+    if (adaptive) {
+      assertThat(colors.size()).isGreaterThanOrEqualTo(56);
+    }
+    for (Color color : colors) {
+      for (int c = 0; c < 3; ++c) {
+        assertThat(color.getComponent(c)).isBetween(0.0, 1.0);
+      }
+    }
+    assertThat(quantizer.quantize(histogram, 64)).isEqualTo(colors);
+  }
+}
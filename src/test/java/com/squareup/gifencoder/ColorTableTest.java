@@ -1,5 +1,7 @@
 package com.squareup.gifencoder;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashSet;
 import org.junit.Test;
@@ -26,6 +28,35 @@ public class ColorTableTest {
     assertThat(table5.paddedSize()).isEqualTo(8);
   }
 
+  @Test public void getIndices() {
+    ColorTable table = ColorTable.fromRgb(new int[] {0xFF0000, 0x00FF00, 0x0000FF});
+    Image image = Image.fromRgb(new int[] {0x0000FF, 0xFF0000, 0x00FF00, 0x0000FF}, 2);
+    assertThat(table.getIndices(image)).containsExactly(2, 0, 1, 2);
+  }
+
+  @Test public void getIndex_sharedCacheSlot() {
+    // These colors differ only in their low bits, so they compete for the same cache entry.
+    ColorTable table = ColorTable.fromRgb(new int[] {0x000000, 0x010101, 0x070707});
+    for (int i = 0; i < 3; ++i) {
+      assertThat(table.getIndex(0x070707)).isEqualTo(2);
+      assertThat(table.getIndex(0x000000)).isEqualTo(0);
+      assertThat(table.getIndex(0x010101)).isEqualTo(1);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void getIndex_missingColor() {
+    ColorTable.fromRgb(new int[] {0xFF0000}).getIndex(0x00FF00);
+  }
+
+  @Test public void fromRgb_removesDuplicates() throws IOException {
+    ColorTable table = ColorTable.fromRgb(new int[] {0x123456, 0xABCDEF, 0x123456});
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    table.write(outputStream);
+    assertThat(outputStream.toByteArray())
+        .isEqualTo(new byte[] {0x12, 0x34, 0x56, (byte) 0xAB, (byte) 0xCD, (byte) 0xEF});
+  }
+
   private ColorTable createColorTable(Color... colors) {
     return ColorTable.fromColors(new HashSet<>(Arrays.asList(colors)));
   }
@@ -0,0 +1,102 @@
+package com.squareup.gifencoder;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FloydSteinbergDithererTest {
+  @Test public void testDither_matchesColorArithmetic() {
+    Random random = new Random(11);
+    int width = 37, height = 23;
+    int[] rgb = new int[width * height];
+    for (int i = 0; i < rgb.length; ++i) {
+      rgb[i] = random.nextInt(1 << 24);
+    }
+    Image image = Image.fromRgb(rgb, width);
+    Set<Color> palette = randomPalette(random, 16);
+
+    assertSameColors(FloydSteinbergDitherer.INSTANCE.dither(image, palette),
+        referenceDither(image, palette));
+  }
+
+  @Test public void testDither_unpackedColors() {
+    Random random = new Random(12);
+    Color[][] colors = new Color[9][13];
+    for (Color[] row : colors) {
+      for (int x = 0; x < row.length; ++x) {
+        row[x] = new Color(random.nextDouble(), random.nextDouble(), random.nextDouble());
+      }
+    }
+    Image image = Image.fromColors(colors);
+    Set<Color> palette = randomPalette(random, 5);
+
+    assertSameColors(FloydSteinbergDitherer.INSTANCE.dither(image, palette),
+        referenceDither(image, palette));
+  }
+
+  @Test public void testDitherToIndices_singleRowAndColumn() {
+    Palette palette = new Palette(Arrays.asList(Color.BLACK, Color.WHITE));
+    Color gray = new Color(0.5, 0.5, 0.5);
+    Image row = Image.fromColors(new Color[][] {{gray, gray, gray, gray}});
+    Image column = Image.fromColors(new Color[][] {{gray}, {gray}, {gray}, {gray}});
+
+    // Even with no neighbors in one direction, the error still reaches the next pixel.
+    assertThat(FloydSteinbergDitherer.INSTANCE.ditherToIndices(row, palette, null))
+        .containsExactly(0, 1, 0, 1);
+    assertThat(FloydSteinbergDitherer.INSTANCE.ditherToIndices(column, palette, null))
+        .containsExactly(0, 1, 0, 1);
+  }
+
+  private static Set<Color> randomPalette(Random random, int size) {
+    Set<Color> palette = new LinkedHashSet<>();
+    while (palette.size() < size) {
+      palette.add(new Color(random.nextDouble(), random.nextDouble(), random.nextDouble()));
+    }
+    return palette;
+  }
+
+  private static void assertSameColors(Image actual, Image expected) {
+    assertThat(actual.getWidth()).isEqualTo(expected.getWidth());
+    assertThat(actual.getHeight()).isEqualTo(expected.getHeight());
+    for (int i = 0; i < expected.getNumPixels(); ++i) {
+      assertThat(actual.getColor(i)).isEqualTo(expected.getColor(i));
+    }
+  }
+
+  /**
+   * The original implementation, which works on a full grid of {@link Color}s.
+   */
+  private static Image referenceDither(Image image, Set<Color> newColors) {
+    int width = image.getWidth();
+    int height = image.getHeight();
+    Color[][] colors = new Color[height][width];
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x) {
+        colors[y][x] = image.getColor(x, y);
+      }
+    }
+
+    int[][] offsets = {{1, 0}, {-1, 1}, {0, 1}, {1, 1}};
+    double[] fractions = {7.0 / 16.0, 3.0 / 16.0, 5.0 / 16.0, 1.0 / 16.0};
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x) {
+        Color originalColor = colors[y][x];
+        Color replacementColor = originalColor.getNearestColor(newColors);
+        colors[y][x] = replacementColor;
+        Color error = originalColor.minus(replacementColor);
+
+        for (int i = 0; i < offsets.length; ++i) {
+          int siblingX = x + offsets[i][0], siblingY = y + offsets[i][1];
+          if (siblingX >= 0 && siblingY >= 0 && siblingX < width && siblingY < height) {
+            colors[siblingY][siblingX] = colors[siblingY][siblingX].plus(error.scaled(fractions[i]));
+          }
+        }
+      }
+    }
+    return Image.fromColors(colors);
+  }
+}
@@ -0,0 +1,345 @@
+package com.squareup.gifencoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.atIndex;
+import static org.junit.Assert.fail;
+
+public class GifEncoderTest {
+  private static final int WIDTH = 64;
+  private static final int HEIGHT = 48;
+
+  @Test public void testAsyncMatchesSynchronous() throws IOException {
+    List<int[]> frames = randomFrames(new Random(0), 20);
+    ImageOptions options = new ImageOptions().setDitherer(NearestColorDitherer.INSTANCE);
+
+    byte[] expected = encode(frames, options, new EncoderOptions());
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      byte[] actual = encode(frames, options,
+          new EncoderOptions().setExecutor(executor).setMaxFramesInFlight(3));
+      assertThat(actual).isEqualTo(expected);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test public void testRowBandsMatchSingleBand() throws IOException {
+    List<int[]> frames = randomFrames(new Random(0), 6);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      for (ColorQuantizer quantizer
+          : Arrays.asList(WuQuantizer.INSTANCE, MedianCutQuantizer.INSTANCE)) {
+        for (Ditherer ditherer
+            : Arrays.asList(NearestColorDitherer.INSTANCE, FloydSteinbergDitherer.INSTANCE)) {
+          ImageOptions options = new ImageOptions()
+              .setColorQuantizer(quantizer)
+              .setDitherer(ditherer)
+              .setNearestColorCacheSize(64);
+          byte[] expected = encode(frames, options, new EncoderOptions());
+          options.setExecutor(executor).setRowBandSize(256);
+          assertThat(encode(frames, options, new EncoderOptions())).isEqualTo(expected);
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test public void testEncoderOptionsAreCopied() throws IOException {
+    List<int[]> frames = randomFrames(new Random(0), 6);
+    ImageOptions imageOptions = new ImageOptions();
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      byte[] expected = encode(frames, imageOptions,
+          new EncoderOptions().setExecutor(executor).setGlobalColorTable(true));
+
+      EncoderOptions encoderOptions =
+          new EncoderOptions().setExecutor(executor).setGlobalColorTable(true);
+      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+      GifEncoder encoder = new GifEncoder(outputStream, WIDTH, HEIGHT, 0, encoderOptions);
+      for (int[] frame : frames) {
+        encoder.addImage(frame, WIDTH, imageOptions);
+        encoderOptions.setExecutor(null).setTransparentUnchangedPixels(true);
+      }
+      encoder.finishEncoding();
+      assertThat(outputStream.toByteArray()).isEqualTo(expected);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test public void testAsyncReportsFailures() throws IOException {
+    ColorQuantizer brokenQuantizer = new ColorQuantizer() {
+      @Override public Set<Color> quantize(Multiset<Color> originalColors, int maxColorCount) {
+        throw new IllegalStateException("boom");
+      }
+    };
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      GifEncoder encoder = new GifEncoder(new ByteArrayOutputStream(), WIDTH, HEIGHT, 0,
+          new EncoderOptions().setExecutor(executor));
+      encoder.addImage(randomFrames(new Random(1), 2).get(1), WIDTH,
+          new ImageOptions().setColorQuantizer(brokenQuantizer));
+      encoder.finishEncoding();
+      fail();
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessage("boom");
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test public void testListener() throws IOException {
+    List<int[]> frames = randomFrames(new Random(2), 6);
+    ImageOptions options = new ImageOptions()
+        .setColorQuantizer(UniformQuantizer.INSTANCE)
+        .setDitherer(NearestColorDitherer.INSTANCE);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      for (EncoderOptions encoderOptions
+          : Arrays.asList(new EncoderOptions(), new EncoderOptions().setExecutor(executor))) {
+        final List<ImageStats> reported = new ArrayList<>();
+        encoderOptions.setListener(new EncoderListener() {
+          @Override public void onImageWritten(ImageStats stats) {
+            reported.add(stats);
+          }
+        });
+        byte[] gif = encode(frames, options, encoderOptions);
+
+        assertThat(reported).hasSize(frames.size());
+        long byteCount = 0;
+        for (int i = 0; i < reported.size(); ++i) {
+          ImageStats stats = reported.get(i);
+          assertThat(stats.getImageIndex()).isEqualTo(i);
+          assertThat(stats.usesGlobalColorTable()).isFalse();
+          if (i % 2 == 0) {
+            assertThat(stats.getDistinctColorCount()).isEqualTo(5);
+            assertThat(stats.getColorTableSize()).isEqualTo(5);
+          } else {
+            assertThat(stats.getDistinctColorCount()).isGreaterThan(256);
+            assertThat(stats.getColorTableSize()).isLessThanOrEqualTo(256);
+          }
+          assertThat(stats.getCompressTime(TimeUnit.NANOSECONDS)).isGreaterThan(0);
+          byteCount += stats.getByteCount();
+        }
+        // Everything but the header, logical screen, looping extension and trailer.
+        assertThat(byteCount).isEqualTo(gif.length - 6 - 7 - 19 - 1);
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test public void testListener_nearestColorCache() throws IOException {
+    List<int[]> frames = randomFrames(new Random(3), 4);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      for (int rowBandSize : new int[] {0, 256}) {
+        ImageOptions options = new ImageOptions()
+            .setDitherer(NearestColorDitherer.INSTANCE)
+            .setNearestColorCacheSize(1024)
+            .setExecutor(executor)
+            .setRowBandSize(rowBandSize);
+        final List<ImageStats> reported = new ArrayList<>();
+        encode(frames, options, new EncoderOptions().setListener(new EncoderListener() {
+          @Override public void onImageWritten(ImageStats stats) {
+            reported.add(stats);
+          }
+        }));
+
+        for (int i = 0; i < reported.size(); ++i) {
+          ImageStats stats = reported.get(i);
+          long lookups = stats.getNearestColorCacheHits() + stats.getNearestColorCacheMisses();
+          // Frames with few colors are indexed exactly, without dithering.
+          assertThat(lookups).isEqualTo(i % 2 == 0 ? 0 : WIDTH * HEIGHT);
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test public void testGlobalColorTable_replacesLocalTables() throws IOException {
+    int[] frame = randomFrames(new Random(2), 1).get(0);
+    List<int[]> frames = Arrays.asList(frame, frame, frame);
+    ImageOptions options = new ImageOptions();
+
+    byte[] local = encode(frames, options, new EncoderOptions());
+    byte[] global = encode(frames, options, new EncoderOptions().setGlobalColorTable(true));
+
+    // Five colors pad out to an eight-color table: one global table replaces three local ones.
+    assertThat(global.length).isEqualTo(local.length - 2 * 8 * 3);
+    assertThat(global[10] & 0x80).isEqualTo(0x80);
+    assertThat(getLocalColorTableFlags(global)).containsExactly(false, false, false);
+  }
+
+  @Test public void testGlobalColorTable_fallsBackWhenColorsDrift() throws IOException {
+    int[] grays = new int[WIDTH * HEIGHT];
+    int[] primaries = new int[WIDTH * HEIGHT];
+    for (int i = 0; i < grays.length; ++i) {
+      grays[i] = i % 2 == 0 ? 0x000000 : 0xFFFFFF;
+      primaries[i] = i % 3 == 0 ? 0xFF0000 : i % 3 == 1 ? 0x00FF00 : 0x0000FF;
+    }
+    List<int[]> frames = Arrays.asList(grays, primaries, grays);
+    ImageOptions options = new ImageOptions();
+
+    byte[] unlimited = encode(frames, options, new EncoderOptions().setGlobalColorTable(true));
+    assertThat(getLocalColorTableFlags(unlimited)).containsExactly(false, false, false);
+
+    byte[] limited = encode(frames, options,
+        new EncoderOptions().setGlobalColorTable(true).setGlobalColorTableMaxError(0.1));
+    assertThat(getLocalColorTableFlags(limited)).containsExactly(false, true, false);
+  }
+
+  @Test public void testCropToChanges() throws IOException {
+    int[] first = randomFrames(new Random(3), 1).get(0);
+    int[] second = first.clone();
+    second[5 * WIDTH + 10] = 0x123456;
+    second[7 * WIDTH + 3] = 0x654321;
+    int[] third = second.clone();
+
+    byte[] gif = encode(Arrays.asList(first, second, third), new ImageOptions(),
+        new EncoderOptions().setCropToChanges(true));
+    List<int[]> descriptors = getImageDescriptors(gif);
+    int doNotDispose = DisposalMethod.DO_NOT_DISPOSE.ordinal() << 3;
+    assertThat(descriptors.get(0)).startsWith(0, 0, WIDTH, HEIGHT).contains(doNotDispose, atIndex(5));
+    assertThat(descriptors.get(1)).startsWith(3, 5, 8, 3).contains(doNotDispose, atIndex(5));
+    // An unchanged image still needs a pixel to carry its delay.
+    assertThat(descriptors.get(2)).startsWith(0, 0, 1, 1).contains(doNotDispose, atIndex(5));
+  }
+
+  @Test public void testTransparentUnchangedPixels() throws IOException {
+    int[] first = new int[WIDTH * HEIGHT];
+    for (int i = 0; i < first.length; ++i) {
+      first[i] = i % 3 == 0 ? 0xFF0000 : 0x0000FF;
+    }
+    int[] second = first.clone();
+    second[5 * WIDTH + 10] = 0x00FF00;
+
+    byte[] gif = encode(Arrays.asList(first, second, second), new ImageOptions(),
+        new EncoderOptions().setTransparentUnchangedPixels(true));
+    List<int[]> descriptors = getImageDescriptors(gif);
+    int doNotDispose = DisposalMethod.DO_NOT_DISPOSE.ordinal() << 3;
+
+    // Nothing is on screen yet, so nothing in the first image can be transparent.
+    assertThat(descriptors.get(0)).endsWith(doNotDispose, 0);
+    // Only one pixel of the second image changed, so it needs one color plus a transparent index.
+    assertThat(descriptors.get(1)).startsWith(0, 0, WIDTH, HEIGHT, 0x80)
+        .endsWith(doNotDispose | 1, 1);
+    // When every pixel is unchanged, none of them needs a color.
+    assertThat(descriptors.get(2)).endsWith(doNotDispose | 1, 0);
+  }
+
+  @Test public void testMergeDuplicateImages() throws IOException {
+    List<int[]> frames = randomFrames(new Random(4), 2);
+    int[] first = frames.get(0), second = frames.get(1);
+    ImageOptions options = new ImageOptions().setDelay(100, TimeUnit.MILLISECONDS);
+
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    new GifEncoder(expected, WIDTH, HEIGHT, 0)
+        .addImage(first, WIDTH, new ImageOptions().setDelay(300, TimeUnit.MILLISECONDS))
+        .addImage(second, WIDTH, options)
+        .finishEncoding();
+
+    // The held image must be copied, since callers may reuse their buffers.
+    int[] buffer = first.clone();
+    ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    GifEncoder encoder = new GifEncoder(actual, WIDTH, HEIGHT, 0,
+        new EncoderOptions().setMergeDuplicateImages(true));
+    for (int i = 0; i < 3; ++i) {
+      encoder.addImage(buffer, WIDTH, options);
+    }
+    System.arraycopy(second, 0, buffer, 0, buffer.length);
+    encoder.addImage(buffer, WIDTH, options);
+    Arrays.fill(buffer, 0);
+    encoder.finishEncoding();
+
+    assertThat(actual.toByteArray()).isEqualTo(expected.toByteArray());
+  }
+
+  private static byte[] encode(List<int[]> frames, ImageOptions options,
+      EncoderOptions encoderOptions) throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    GifEncoder encoder = new GifEncoder(outputStream, WIDTH, HEIGHT, 0, encoderOptions);
+    for (int[] frame : frames) {
+      encoder.addImage(frame, WIDTH, options);
+    }
+    encoder.finishEncoding();
+    return outputStream.toByteArray();
+  }
+
+  private static List<Boolean> getLocalColorTableFlags(byte[] gif) {
+    List<Boolean> flags = new ArrayList<>();
+    for (int[] descriptor : getImageDescriptors(gif)) {
+      flags.add((descriptor[4] & 0x80) != 0);
+    }
+    return flags;
+  }
+
+  /**
+   * Walk the blocks of a GIF written by {@link GifEncoder}, returning the left, top, width, height
+   * and packed fields of each image descriptor, followed by the packed fields and transparent
+   * color index of its graphics control extension.
+   */
+  private static List<int[]> getImageDescriptors(byte[] gif) {
+    List<int[]> descriptors = new ArrayList<>();
+    int position = 13; // Header and logical screen descriptor.
+    if ((gif[10] & 0x80) != 0) {
+      position += 3 << ((gif[10] & 0x7) + 1);
+    }
+    position += 19; // Looping extension.
+    while (gif[position] != 0x3B) {
+      int controlFields = gif[position + 3] & 0xFF;
+      int transparentColorIndex = gif[position + 6] & 0xFF;
+      position += 8; // Graphics control extension.
+      int packedFields = gif[position + 9] & 0xFF;
+      descriptors.add(new int[] {
+          readShort(gif, position + 1), readShort(gif, position + 3),
+          readShort(gif, position + 5), readShort(gif, position + 7),
+          packedFields, controlFields, transparentColorIndex});
+      position += 10;
+      if ((packedFields & 0x80) != 0) {
+        position += 3 << ((packedFields & 0x7) + 1);
+      }
+      position += 1; // Minimum code size.
+      while (gif[position] != 0) {
+        position += (gif[position] & 0xFF) + 1;
+      }
+      position += 1;
+    }
+    return descriptors;
+  }
+
+  private static int readShort(byte[] bytes, int position) {
+    return (bytes[position] & 0xFF) | (bytes[position + 1] & 0xFF) << 8;
+  }
+
+  /**
+   * Alternates between frames with a handful of colors, and noisy frames which need quantizing.
+   */
+  private static List<int[]> randomFrames(Random random, int count) {
+    List<int[]> frames = new ArrayList<>();
+    for (int i = 0; i < count; ++i) {
+      int colorCount = i % 2 == 0 ? 5 : 1 << 24;
+      int[] frame = new int[WIDTH * HEIGHT];
+      for (int j = 0; j < frame.length; ++j) {
+        frame[j] = random.nextInt(colorCount) * 0x3FF;
+      }
+      frames.add(frame);
+    }
+    return frames;
+  }
+}
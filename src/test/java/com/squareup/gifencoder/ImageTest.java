@@ -0,0 +1,139 @@
+package com.squareup.gifencoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ImageTest {
+  @Test public void testFromRgb_copiesArray() {
+    int[] rgb = {0xFF0000, 0x00FF00, 0x0000FF, 0xFFFFFF};
+    Image image = Image.fromRgb(rgb, 2);
+    rgb[0] = 0;
+
+    assertThat(image.getWidth()).isEqualTo(2);
+    assertThat(image.getHeight()).isEqualTo(2);
+    assertThat(image.getColor(0, 0)).isEqualTo(Color.RED);
+    assertThat(image.getColor(1, 1)).isEqualTo(Color.WHITE);
+    assertThat(image.getColor(2)).isEqualTo(Color.BLUE);
+  }
+
+  @Test public void testFromRgb_rows() {
+    Image image = Image.fromRgb(new int[][] {{0xFF0000, 0x00FF00}, {0x0000FF, 0x000000}});
+    assertThat(image.getRgb(1, 0)).isEqualTo(0x00FF00);
+    assertThat(image.getRgb(0, 1)).isEqualTo(0x0000FF);
+  }
+
+  @Test public void testWrapRgb_strideAndOffset() {
+    int[] rgb = {
+        9, 9, 9, 9,
+        9, 1, 2, 9,
+        9, 3, 4, 9,
+    };
+    Image image = Image.wrapRgb(rgb, 5, 2, 2, 4);
+    assertThat(image.getNumPixels()).isEqualTo(4);
+    assertThat(image.getRgb(0, 0)).isEqualTo(1);
+    assertThat(image.getRgb(1, 0)).isEqualTo(2);
+    assertThat(image.getRgb(0, 1)).isEqualTo(3);
+    assertThat(image.getRgb(1, 1)).isEqualTo(4);
+  }
+
+  @Test public void testWrapRgb_ignoresAlpha() {
+    Image image = Image.wrapRgb(new int[] {0xFF00FF00}, 1);
+    assertThat(image.getRgb(0, 0)).isEqualTo(0x00FF00);
+    assertThat(image.getColor(0, 0)).isEqualTo(Color.GREEN);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testWrapRgb_regionOutOfBounds() {
+    Image.wrapRgb(new int[8], 3, 2, 2, 4);
+  }
+
+  @Test public void testCrop() {
+    int[] rgb = {
+        1, 2, 3,
+        4, 5, 6,
+        7, 8, 9,
+    };
+    Image packed = Image.wrapRgb(rgb, 3).crop(1, 1, 2, 2);
+    assertThat(packed.getWidth()).isEqualTo(2);
+    assertThat(packed.getRgb(0, 0)).isEqualTo(5);
+    assertThat(packed.getRgb(1, 1)).isEqualTo(9);
+    assertThat(packed.crop(1, 0, 1, 2).getRgb(0, 1)).isEqualTo(9);
+
+    Image colors = Image.fromColors(new Color[][] {
+        {Color.RED, Color.GREEN},
+        {Color.BLUE, Color.WHITE},
+    }).crop(1, 0, 1, 2);
+    assertThat(colors.getColor(0, 0)).isEqualTo(Color.GREEN);
+    assertThat(colors.getColor(0, 1)).isEqualTo(Color.WHITE);
+    assertThat(colors.isPacked()).isFalse();
+
+    byte[] data = {1, 1, 1, 2, 2, 2, 3, 3, 3, 4, 4, 4};
+    Image buffer = Image.fromBuffer(ByteBuffer.wrap(data), PixelFormat.RGB_888, 2, 2)
+        .crop(1, 1, 1, 1);
+    assertThat(buffer.getRgb(0, 0)).isEqualTo(0x040404);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCrop_outOfBounds() {
+    Image.wrapRgb(new int[4], 2).crop(1, 1, 2, 1);
+  }
+
+  @Test public void testFromBuffer_formats() {
+    byte[] rgb = {0x11, 0x22, 0x33, 0x44, 0x55, 0x66};
+    assertThat(Image.fromBuffer(ByteBuffer.wrap(rgb), PixelFormat.RGB_888, 2, 1).getRgb(1, 0))
+        .isEqualTo(0x445566);
+
+    byte[] rgba = {0x11, 0x22, 0x33, (byte) 0xFF, 0x44, 0x55, 0x66, 0x00};
+    assertThat(Image.fromBuffer(ByteBuffer.wrap(rgba), PixelFormat.RGBA_8888, 2, 1).getRgb(1, 0))
+        .isEqualTo(0x445566);
+    assertThat(Image.fromBuffer(ByteBuffer.wrap(rgba), PixelFormat.BGRA_8888, 2, 1).getRgb(0, 0))
+        .isEqualTo(0x332211);
+  }
+
+  @Test public void testFromBuffer_strideAndPosition() {
+    byte[] data = {
+        0x7F,
+        0x01, 0x02, 0x03, 0x7F,
+        0x04, 0x05, 0x06, 0x7F,
+    };
+    ByteBuffer buffer = ByteBuffer.wrap(data);
+    buffer.position(1);
+    Image image = Image.fromBuffer(buffer, PixelFormat.RGB_888, 1, 2, 4);
+
+    assertThat(buffer.position()).isEqualTo(1);
+    assertThat(image.getRgb(0, 0)).isEqualTo(0x010203);
+    assertThat(image.getColor(0, 1)).isEqualTo(Color.fromRgbInt(0x040506));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testFromBuffer_tooSmall() {
+    Image.fromBuffer(ByteBuffer.allocate(11), PixelFormat.RGB_888, 2, 2);
+  }
+
+  @Test public void testGetColors_rowBands() throws IOException {
+    Random random = new Random(0);
+    int[] rgb = new int[100 * 100];
+    boolean[] excludedPixels = new boolean[rgb.length];
+    for (int i = 0; i < rgb.length; ++i) {
+      rgb[i] = random.nextInt(5000);
+      excludedPixels[i] = random.nextInt(10) == 0;
+    }
+    Image image = Image.fromRgb(rgb, 100);
+    ColorHistogram expected = (ColorHistogram) image.getColors(excludedPixels);
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      ColorHistogram actual = (ColorHistogram) image.getColors(excludedPixels, executor, 700);
+      // Merging the bands reproduces the single pass exactly, down to the iteration order.
+      assertThat(actual.getRgbCounts()).isEqualTo(expected.getRgbCounts());
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,52 @@
+package com.squareup.gifencoder;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IndexedImageTest {
+  @Test public void testTryIndex() {
+    Image image = Image.fromRgb(new int[] {0xFF0000, 0x00FF00, 0xFF0000, 0x0000FF}, 2);
+    IndexedImage indexedImage = IndexedImage.tryIndex(image, 256);
+    assertThat(indexedImage.palette).containsExactly(0xFF0000, 0x00FF00, 0x0000FF);
+    assertThat(indexedImage.indices).containsExactly(0, 1, 0, 2);
+  }
+
+  @Test public void testTryIndex_maxColorCount() {
+    int[] rgb = new int[1000];
+    for (int i = 0; i < rgb.length; ++i) {
+      rgb[i] = (i % 256) * 0x010101;
+    }
+    IndexedImage indexedImage = IndexedImage.tryIndex(Image.fromRgb(rgb, 100), 256);
+    assertThat(indexedImage.palette).hasSize(256);
+    assertThat(indexedImage.indices[257]).isEqualTo(1);
+  }
+
+  @Test public void testTryIndex_tooManyColors() {
+    int[] rgb = new int[257];
+    for (int i = 0; i < rgb.length; ++i) {
+      rgb[i] = i;
+    }
+    assertThat(IndexedImage.tryIndex(Image.fromRgb(rgb, 257), 256)).isNull();
+  }
+
+  @Test public void testTryIndex_largeImage() {
+    // Large enough that the index array has to grow several times.
+    int[] rgb = new int[300 * 100];
+    for (int i = 0; i < rgb.length; ++i) {
+      rgb[i] = i % 7;
+    }
+    IndexedImage indexedImage = IndexedImage.tryIndex(Image.fromRgb(rgb, 300), 256);
+    assertThat(indexedImage.indices).hasSize(rgb.length);
+    for (int i = 0; i < rgb.length; ++i) {
+      assertThat(indexedImage.palette[indexedImage.indices[i]]).isEqualTo(rgb[i]);
+    }
+  }
+
+  @Test public void testTryFindPalette() {
+    Image image = Image.fromRgb(new int[] {0xFF0000, 0x00FF00, 0xFF0000, 0x0000FF}, 2);
+    assertThat(IndexedImage.tryFindPalette(image, 256))
+        .containsExactly(0xFF0000, 0x00FF00, 0x0000FF);
+    assertThat(IndexedImage.tryFindPalette(image, 2)).isNull();
+  }
+}
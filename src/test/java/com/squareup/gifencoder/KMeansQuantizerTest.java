@@ -0,0 +1,56 @@
+package com.squareup.gifencoder;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class KMeansQuantizerTest {
+  @Test public void testQuantize() {
+    HashMultiset<Color> originalColors = new HashMultiset<>(Arrays.asList(
+        new Color(0, 0, 0),
+        new Color(0, 0, 0.1),
+        new Color(1, 1, 0.9),
+        new Color(1, 1, 1)));
+    assertThat(KMeansQuantizer.INSTANCE.quantize(originalColors, 2))
+        .containsOnly(new Color(0, 0, 0.05), new Color(1, 1, 0.95));
+  }
+
+  @Test public void testQuantize_miniBatch() {
+    ColorHistogram histogram = randomHistogram();
+    KMeansQuantizer quantizer = KMeansQuantizer.INSTANCE
+        .withSampleSize(256)
+        .withMaxIterations(20)
+        .withSeed(42);
+    Set<Color> colors = quantizer.quantize(histogram, 64);
+    assertThat(colors).hasSize(64);
+    assertThat(quantizer.quantize(histogram, 64)).isEqualTo(colors);
+  }
+
+  @Test public void testQuantize_timeLimit() {
+    // A limit which passes before the first round still leaves the initial clusters.
+    KMeansQuantizer quantizer = KMeansQuantizer.INSTANCE.withTimeLimit(1, TimeUnit.NANOSECONDS);
+    assertThat(quantizer.quantize(randomHistogram(), 64).size()).isBetween(60, 64);
+  }
+
+  @Test public void testWithMaxIterations_notPositive() {
+    try {
+      KMeansQuantizer.INSTANCE.withMaxIterations(0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  private static ColorHistogram randomHistogram() {
+    Random random = new Random(0);
+    ColorHistogram histogram = new ColorHistogram();
+    for (int i = 0; i < 20_000; ++i) {
+      histogram.addRgb(random.nextInt(1 << 24), 1 + random.nextInt(3));
+    }
+    return histogram;
+  }
+}
@@ -0,0 +1,93 @@
+package com.squareup.gifencoder;
+
+import java.util.Arrays;
+
+/**
+ * A straightforward GIF LZW decoder, following the same rules as common decoders for when to widen
+ * codes. Used to check that encoded data round-trips.
+ */
+final class LzwDecoder {
+  private static final int MAX_CODE_TABLE_SIZE = 1 << 12;
+
+  private LzwDecoder() {
+  }
+
+  /**
+   * Decode raw LZW data (without sub-block framing), stopping once {@code pixelCount} indices have
+   * been decoded, as most decoders do.
+   */
+  static int[] decode(byte[] data, int minimumCodeSize, int pixelCount) {
+    int clearCode = 1 << minimumCodeSize;
+    int endOfInfoCode = clearCode + 1;
+    int[][] table = new int[MAX_CODE_TABLE_SIZE][];
+    for (int i = 0; i < clearCode; ++i) {
+      table[i] = new int[] {i};
+    }
+
+    int[] result = new int[pixelCount];
+    int resultSize = 0;
+    int codeSize = minimumCodeSize + 1;
+    int nextCode = endOfInfoCode + 1;
+    int[] previous = null;
+    long bitPosition = 0;
+    while (resultSize < pixelCount) {
+      int code = 0;
+      for (int i = 0; i < codeSize; ++i, ++bitPosition) {
+        int bit = data[(int) (bitPosition / 8)] >>> (bitPosition % 8) & 1;
+        code |= bit << i;
+      }
+
+      if (code == clearCode) {
+        codeSize = minimumCodeSize + 1;
+        nextCode = endOfInfoCode + 1;
+        previous = null;
+        continue;
+      }
+      if (code == endOfInfoCode) {
+        throw new IllegalStateException("Unexpected end of info after " + resultSize + " indices");
+      }
+
+      int[] entry;
+      if (code < nextCode && table[code] != null) {
+        entry = table[code];
+      } else if (code == nextCode && previous != null) {
+        entry = append(previous, previous[0]);
+      } else {
+        throw new IllegalStateException("Invalid code " + code + " after " + resultSize);
+      }
+      System.arraycopy(entry, 0, result, resultSize, entry.length);
+      resultSize += entry.length;
+
+      if (previous != null && nextCode < MAX_CODE_TABLE_SIZE) {
+        table[nextCode++] = append(previous, entry[0]);
+        if (nextCode == 1 << codeSize && codeSize < 12) {
+          ++codeSize;
+        }
+      }
+      previous = entry;
+    }
+    return result;
+  }
+
+  /**
+   * Strip the sub-block framing from a sequence of data sub-blocks.
+   */
+  static byte[] unframe(byte[] subBlocks) {
+    byte[] result = new byte[subBlocks.length];
+    int resultSize = 0;
+    int i = 0;
+    while (i < subBlocks.length) {
+      int length = subBlocks[i++] & 0xFF;
+      System.arraycopy(subBlocks, i, result, resultSize, length);
+      resultSize += length;
+      i += length;
+    }
+    return Arrays.copyOf(result, resultSize);
+  }
+
+  private static int[] append(int[] sequence, int index) {
+    int[] result = Arrays.copyOf(sequence, sequence.length + 1);
+    result[sequence.length] = index;
+    return result;
+  }
+}
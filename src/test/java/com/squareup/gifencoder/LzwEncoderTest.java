@@ -1,5 +1,12 @@
 package com.squareup.gifencoder;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import org.junit.Test;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -13,4 +20,152 @@ public class LzwEncoderTest {
   public void testInvalidColorTableSize() {
     new LzwEncoder(7);
   }
+
+  @Test public void testEncode_golden() {
+    int[] indices = {0, 0, 0, 0, 1, 1, 1, 1, 2, 3, 2, 3, 2, 3};
+    assertThat(new LzwEncoder(4).encode(indices))
+        .isEqualTo(new byte[] {(byte) 0x84, 0x11, 0x19, 0x32, (byte) 0xCC, 0x05});
+  }
+
+  @Test public void testEncode_singleIndex() {
+    assertMatchesReference(2, new int[] {1});
+  }
+
+  @Test public void testEncode_singleRun() {
+    assertMatchesReference(2, new int[100_000]);
+  }
+
+  @Test public void testEncode_randomNoise() {
+    Random random = new Random(0);
+    for (int colorTableSize = 2; colorTableSize <= 256; colorTableSize *= 2) {
+      assertMatchesReference(colorTableSize, randomIndices(random, colorTableSize, 50_000));
+    }
+  }
+
+  @Test public void testEncode_repetitivePattern() {
+    // Long repeated sequences build long codes, and eventually fill the code table.
+    int[] indices = new int[200_000];
+    for (int i = 0; i < indices.length; ++i) {
+      indices[i] = (i / 3 + i % 7) % 16;
+    }
+    assertMatchesReference(16, indices);
+  }
+
+  @Test public void testEncode_tableResets() {
+    // Enough distinct pairs to overflow the 4096 entry table many times over.
+    Random random = new Random(1);
+    assertMatchesReference(256, randomIndices(random, 256, 300_000));
+  }
+
+  @Test public void testGetTableResetCount() throws IOException {
+    LzwEncoder encoder = new LzwEncoder(2);
+    encoder.encode(new int[100_000]);
+    assertThat(encoder.getTableResetCount()).isEqualTo(0);
+
+    // Noise repeats too little for codes to grow long, so it fills the table over and over.
+    int[] indices = randomIndices(new Random(5), 256, 300_000);
+    encoder = new LzwEncoder(256);
+    encoder.encode(indices);
+    assertThat(encoder.getTableResetCount()).isGreaterThan(10);
+
+    // Segments count their own resets, which are summed.
+    Executor callerRuns = new Executor() {
+      @Override public void execute(Runnable command) {
+        command.run();
+      }
+    };
+    encoder = new LzwEncoder(256);
+    encoder.encode(indices, new ByteArrayOutputStream(), callerRuns, 3);
+    int expectedCount = 0;
+    for (int i = 0; i < 3; ++i) {
+      LzwEncoder segmentEncoder = new LzwEncoder(256);
+      segmentEncoder.encode(Arrays.copyOfRange(indices, i * 100_000, (i + 1) * 100_000));
+      expectedCount += segmentEncoder.getTableResetCount();
+    }
+    assertThat(encoder.getTableResetCount()).isEqualTo(expectedCount);
+  }
+
+  @Test public void testEncode_streamingMatchesBuffered() throws IOException {
+    int[] indices = randomIndices(new Random(2), 64, 100_000);
+    byte[] lzwData = new LzwEncoder(64).encode(indices);
+
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    for (int i = 0; i < lzwData.length; i += 255) {
+      int subBlockLength = Math.min(lzwData.length - i, 255);
+      expected.write(subBlockLength);
+      expected.write(lzwData, i, subBlockLength);
+    }
+
+    ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    new LzwEncoder(64).encode(indices, actual);
+    assertThat(actual.toByteArray()).isEqualTo(expected.toByteArray());
+  }
+
+  @Test public void testEncode_roundTrip() {
+    int[] indices = randomIndices(new Random(3), 32, 200_000);
+    LzwEncoder encoder = new LzwEncoder(32);
+    byte[] lzwData = encoder.encode(indices);
+    assertThat(LzwDecoder.decode(lzwData, encoder.getMinimumCodeSize(), indices.length))
+        .isEqualTo(indices);
+  }
+
+  @Test public void testEncode_segmentsRoundTrip() throws IOException {
+    Executor callerRuns = new Executor() {
+      @Override public void execute(Runnable command) {
+        command.run();
+      }
+    };
+    Random random = new Random(4);
+    for (int colorTableSize = 4; colorTableSize <= 256; colorTableSize *= 4) {
+      int[] indices = randomIndices(random, colorTableSize, 30_000);
+      for (int segmentCount = 1; segmentCount <= 9; ++segmentCount) {
+        assertSegmentsRoundTrip(colorTableSize, indices, callerRuns, segmentCount);
+      }
+    }
+
+    // Three distinct indices per segment, so each segment ends just as a decoder will widen its
+    // codes, before it reads the clear code between segments.
+    int[] indices = new int[30];
+    for (int i = 0; i < indices.length; ++i) {
+      indices[i] = i % 4;
+    }
+    assertSegmentsRoundTrip(4, indices, callerRuns, 10);
+  }
+
+  @Test public void testEncode_segmentsOnThreadPool() throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      int[] indices = randomIndices(new Random(5), 256, 500_000);
+      assertSegmentsRoundTrip(256, indices, executor, 8);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static void assertSegmentsRoundTrip(int colorTableSize, int[] indices, Executor executor,
+      int segmentCount) throws IOException {
+    LzwEncoder encoder = new LzwEncoder(colorTableSize);
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    encoder.encode(indices, outputStream, executor, segmentCount);
+    byte[] lzwData = LzwDecoder.unframe(outputStream.toByteArray());
+    assertThat(LzwDecoder.decode(lzwData, encoder.getMinimumCodeSize(), indices.length))
+        .isEqualTo(indices);
+  }
+
+  private static int[] randomIndices(Random random, int colorTableSize, int count) {
+    int[] indices = new int[count];
+    for (int i = 0; i < count; ++i) {
+      // Bias towards runs, like real images.
+      indices[i] = i > 0 && random.nextInt(4) != 0
+          ? indices[i - 1]
+          : random.nextInt(colorTableSize);
+    }
+    return indices;
+  }
+
+  private static void assertMatchesReference(int colorTableSize, int[] indices) {
+    byte[] expected = new ReferenceLzwEncoder(colorTableSize).encode(indices);
+    byte[] actual = new LzwEncoder(colorTableSize).encode(indices);
+    assertThat(actual).isEqualTo(expected);
+  }
 }
@@ -33,4 +33,13 @@ public class MedianCutQuantizerTest {
         .hasSize(2)
         .contains(new Color(0, 0.25, 0), new Color(1, 0.25, 0));
   }
+
+  @Test public void testQuantize_splitsAtWeightedMedian() {
+    ColorHistogram histogram = new ColorHistogram();
+    histogram.addRgb(0x000000, 1);
+    histogram.addRgb(0x100000, 1);
+    histogram.addRgb(0x200000, 10);
+    assertThat(MedianCutQuantizer.INSTANCE.quantize(histogram, 2))
+        .containsOnly(new Color(8 / 255.0, 0, 0), Color.fromRgbInt(0x200000));
+  }
 }
@@ -0,0 +1,57 @@
+package com.squareup.gifencoder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NearestColorCacheTest {
+  @Test public void testGetNearestIndex_matchesPalette() {
+    Random random = new Random(13);
+    List<Color> colors = new ArrayList<>();
+    for (int i = 0; i < 64; ++i) {
+      colors.add(Color.fromRgbInt(random.nextInt(1 << 24)));
+    }
+    Palette palette = new Palette(colors);
+    // A tiny cache, so that most lookups evict something.
+    NearestColorCache cache = new NearestColorCache(palette, 8);
+
+    for (int i = 0; i < 2000; ++i) {
+      int rgb = random.nextInt(64) * 0x040404;
+      Color color = Color.fromRgbInt(rgb);
+      assertThat(cache.getNearestIndex(rgb)).isEqualTo(palette.getNearestIndex(
+          color.getComponent(0), color.getComponent(1), color.getComponent(2)));
+    }
+    assertThat(cache.getHitCount() + cache.getMissCount()).isEqualTo(2000);
+  }
+
+  @Test public void testHitAndMissCounts() {
+    Palette palette = new Palette(Arrays.asList(Color.BLACK, Color.WHITE));
+    NearestColorCache cache = new NearestColorCache(palette, 1 << 15);
+    for (int i = 0; i < 10; ++i) {
+      assertThat(cache.getNearestIndex(0x101010)).isEqualTo(0);
+      assertThat(cache.getNearestIndex(0xF0F0F0)).isEqualTo(1);
+    }
+    assertThat(cache.getMissCount()).isEqualTo(2);
+    assertThat(cache.getHitCount()).isEqualTo(18);
+  }
+
+  @Test public void testGetNearestIndex_roundsArbitraryColors() {
+    Palette palette = new Palette(Arrays.asList(Color.BLACK, Color.WHITE));
+    NearestColorCache cache = new NearestColorCache(palette, 16);
+    assertThat(cache.getNearestIndex(0.3, -0.5, 0.1)).isEqualTo(0);
+    assertThat(cache.getNearestIndex(1.7, 0.8, 0.6)).isEqualTo(1);
+    // Both of these round to 0x808080.
+    assertThat(cache.getNearestIndex(0.5, 0.5, 0.5)).isEqualTo(1);
+    assertThat(cache.getNearestIndex(0.502, 0.501, 0.5)).isEqualTo(1);
+    assertThat(cache.getHitCount()).isEqualTo(1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testZeroSize() {
+    new NearestColorCache(new Palette(Arrays.asList(Color.BLACK)), 0);
+  }
+}
@@ -0,0 +1,32 @@
+package com.squareup.gifencoder;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OctreeQuantizerTest {
+  @Test public void testQuantize() {
+    // The two dark colors share an octant of the color cube, as do the two red ones.
+    HashMultiset<Color> originalColors = new HashMultiset<>(Arrays.asList(
+        new Color(0, 0, 0),
+        new Color(1, 0, 0),
+        new Color(0, 0.25, 0),
+        new Color(1, 0.25, 0)));
+    assertThat(OctreeQuantizer.INSTANCE.quantize(originalColors, 2))
+        .hasSize(2)
+        .contains(new Color(0, 0.125, 0), new Color(1, 0.125, 0));
+  }
+
+  @Test public void testQuantize_moreColorsThanNodePool() {
+    Random random = new Random(0);
+    ColorHistogram histogram = new ColorHistogram();
+    for (int i = 0; i < 500_000; ++i) {
+      histogram.addRgb(random.nextInt(1 << 24), 1 + random.nextInt(3));
+    }
+    Set<Color> colors = OctreeQuantizer.INSTANCE.quantize(histogram, 256);
+    assertThat(colors.size()).isBetween(200, 256);
+  }
+}
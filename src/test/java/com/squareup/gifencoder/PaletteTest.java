@@ -0,0 +1,85 @@
+package com.squareup.gifencoder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PaletteTest {
+  @Test public void testGetNearestIndex_matchesLinearScan() {
+    Random random = new Random(12);
+    for (int size : new int[] {1, 2, 3, 17, 256}) {
+      List<Color> colors = new ArrayList<>();
+      for (int i = 0; i < size; ++i) {
+        colors.add(new Color(random.nextDouble(), random.nextDouble(), random.nextDouble()));
+      }
+      Palette palette = new Palette(colors);
+
+      for (int i = 0; i < 1000; ++i) {
+        // Queries may fall outside [0, 1], as they do while dithering.
+        double red = random.nextDouble() * 1.4 - 0.2;
+        double green = random.nextDouble() * 1.4 - 0.2;
+        double blue = random.nextDouble() * 1.4 - 0.2;
+        assertThat(palette.getNearestIndex(red, green, blue))
+            .isEqualTo(getNearestIndexByScan(colors, red, green, blue));
+      }
+    }
+  }
+
+  @Test public void testGetNearestIndex_tiesGoToEarliest() {
+    // A coarse grid has many colors at exactly the same distance from each query.
+    List<Color> colors = new ArrayList<>();
+    for (int r = 0; r < 4; ++r) {
+      for (int g = 0; g < 4; ++g) {
+        for (int b = 0; b < 4; ++b) {
+          colors.add(new Color(r / 3.0, g / 3.0, b / 3.0));
+        }
+      }
+    }
+    Collections.shuffle(colors, new Random(4));
+    Palette palette = new Palette(colors);
+
+    for (int r = 0; r < 7; ++r) {
+      for (int g = 0; g < 7; ++g) {
+        for (int b = 0; b < 7; ++b) {
+          assertThat(palette.getNearestIndex(r / 6.0, g / 6.0, b / 6.0))
+              .isEqualTo(getNearestIndexByScan(colors, r / 6.0, g / 6.0, b / 6.0));
+        }
+      }
+    }
+  }
+
+  @Test public void testGetNearestColor_skipsDegenerateColors() {
+    Color nan = new Color(Double.NaN, Double.NaN, Double.NaN);
+    Palette palette = new Palette(Arrays.asList(nan, Color.WHITE, nan, Color.BLACK, nan));
+    assertThat(palette.getNearestColor(Color.RED)).isSameAs(Color.BLACK);
+    assertThat(palette.getNearestColor(new Color(0.9, 0.9, 0.9))).isSameAs(Color.WHITE);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testEmpty() {
+    new Palette(Collections.<Color>emptyList());
+  }
+
+  private static int getNearestIndexByScan(List<Color> colors, double red, double green,
+      double blue) {
+    int nearest = -1;
+    double nearestDistance = Double.POSITIVE_INFINITY;
+    for (int i = 0; i < colors.size(); ++i) {
+      Color color = colors.get(i);
+      double dr = red - color.getComponent(0);
+      double dg = green - color.getComponent(1);
+      double db = blue - color.getComponent(2);
+      double distance = dr * dr + dg * dg + db * db;
+      if (distance < nearestDistance) {
+        nearest = i;
+        nearestDistance = distance;
+      }
+    }
+    return nearest;
+  }
+}
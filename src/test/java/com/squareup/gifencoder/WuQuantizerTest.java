@@ -0,0 +1,20 @@
+package com.squareup.gifencoder;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WuQuantizerTest {
+  @Test public void testQuantize() {
+    // Cutting along red separates the most variance, leaving two groups with equal red components.
+    HashMultiset<Color> originalColors = new HashMultiset<>(Arrays.asList(
+        new Color(0, 0, 0),
+        new Color(1, 0, 0),
+        new Color(0, 0.5, 0),
+        new Color(1, 0.5, 0)));
+    assertThat(WuQuantizer.INSTANCE.quantize(originalColors, 2))
+        .hasSize(2)
+        .contains(new Color(0, 0.25, 0), new Color(1, 0.25, 0));
+  }
+}